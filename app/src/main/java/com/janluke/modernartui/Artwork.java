@@ -1,10 +1,21 @@
 package com.janluke.modernartui;
 
+import android.content.Context;
 import android.graphics.Color;
 import android.view.View;
+import android.view.ViewGroup;
 
 import com.janluke.modernartui.colors.ColorSampler;
+import com.janluke.modernartui.colors.ColorSpaces;
+import com.janluke.modernartui.colors.ConstrainedColorSampler;
+import com.janluke.modernartui.fill.FillStyle;
+import com.janluke.modernartui.fill.TileShaderCache;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileAdjacency;
+import com.janluke.modernartui.model.TileTree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -15,11 +26,87 @@ import java.util.Set;
 /**
  * An artwork composed by colored tiles.
  * Assignment constraint: at least one of the tiles must be white and its color can't be changed.
+ *
+ * Recolors and saturation, brightness and depth limit changes apply either to the whole tree or
+ * to the subtree of a node, at a cost proportional to its size. They are recorded in an edit
+ * log, together with tile hue changes, and can be undone and redone.
+ *
+ * Edits change the colors in flat arrays, but only the views of the tiles currently shown: the
+ * other nodes (internal nodes, whose leaf view is hidden, and nodes below the depth limit) are
+ * marked as stale, and their views are updated only when a depth limit or layout size change
+ * reveals them. So an edit at depth limit 2 touches tens of views rather than the whole tree.
  */
 public class Artwork {
+    public static final int NO_DEPTH_LIMIT = -1;
+
+    static final int ROOT = 0;      // index of the root node
+
+    // Rough sizes of the objects of a node, for estimateRetainedSize
+    static final int NODE_BYTES = 64;           // ArtworkNode, its children list and HSB array
+    static final int VIEW_BYTES = 600;          // View, layout params and background
+
     private ArtworkNode root;
     private boolean forceWhiteNodes;
-    private Set<ArtworkNode> lockedWhiteNodes = new HashSet<>();
+    // Locked white nodes, by index; the nodes locked before indexing wait in the set
+    private boolean[] lockedWhite;
+    private Set<ArtworkNode> lockedBeforeIndexing = new HashSet<>();
+
+    // Nodes in breadth-first order (their index is ArtworkNode.index), with the index of the
+    // parent and of the first child of each node (children are contiguous, and childStarts[n] =
+    // n), and the index of the first node of each level, followed by n. Built lazily: the shape
+    // of the tree never changes.
+    private ArtworkNode[] nodes;
+    private int[] parents;
+    private int[] childStarts;
+    private int[] levelStarts;
+
+    // Shape of the tree: orientation of the children and layout weight of each node, from which
+    // the shed nodes (null in nodes) are rebuilt
+    private byte[] orientations;
+    private int[] weights;
+    private int numShedNodes;
+
+    // What the rebuilt nodes need to look and behave like the others
+    private ArtworkNodePool pool;
+    private int strokeWidthInPx;
+    private ArtworkNode.OnClickListener clickListener;
+    private ArtworkNode.OnLongClickListener longClickListener;
+    private FillStyle[] fillStyles;     // by index, allocated lazily
+    private TileShaderCache shaderCache;
+
+    // Depth limits set on subtrees, by root (NO_DEPTH_LIMIT where not set), allocated lazily
+    private int[] subtreeDepthLimits;
+
+    // Colors of the nodes (3 HSB components each), which the views of the stale nodes don't
+    // show yet
+    private float[] colors;
+    private boolean[] staleViews;
+    private int numStaleViews;
+    private boolean[] reachable;    // whether all the ancestors of a node show their children
+
+    // Colors of the nodes of the subtree being edited (sized for the whole tree)
+    private float[] scratchHsb;
+    private boolean[] scratchLocked;
+
+    // Undo/redo history, and the values set by the last edits (NaN or NO_DEPTH_LIMIT if unknown)
+    private final ArtworkEditLog editLog = new ArtworkEditLog(this);
+    private final Random random = new Random();
+    private float saturation = Float.NaN;
+    private float brightness = Float.NaN;
+    private int depthLimit = NO_DEPTH_LIMIT;
+
+    // Adjacency-aware recoloring (disabled when minNeighborDistance is 0)
+    static final int MAX_NEIGHBOR_COLOR_TRIES = 8;
+    private float minNeighborDistance = 0;
+    private List<ArtworkNode> visibleTiles;     // tiles of the cached adjacency graph
+    private int[] tileOfNode;                   // index in visibleTiles of each node, or -1
+    private int[] localTileIndex;               // scratch of separateNeighborColors, all -1
+    private TileAdjacency adjacency;
+    private final View.OnLayoutChangeListener layoutChangeListener =
+            (view, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+                if (right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop)
+                    invalidateAdjacency();
+            };
 
     /**
      * @param root            The root ArtworkNode
@@ -28,6 +115,7 @@ public class Artwork {
     public Artwork(ArtworkNode root, boolean forceWhiteNodes) {
         this.root = root;
         this.forceWhiteNodes = forceWhiteNodes;
+        root.getView().addOnLayoutChangeListener(layoutChangeListener);
     }
 
     public Artwork(ArtworkNode root) {
@@ -42,63 +130,886 @@ public class Artwork {
         return root.getView();
     }
 
+    public boolean isForcingWhiteNodes() {
+        return forceWhiteNodes;
+    }
+
+    public boolean isLockedWhite(ArtworkNode node) {
+        indexNodes();
+        return lockedWhite[node.index];
+    }
+
+    /**
+     * Returns the color of the node, even if its view was not updated yet.
+     */
+    public int getColor(ArtworkNode node) {
+        indexNodes();
+        return getColor(node.index);
+    }
+
+    int getColor(int i) {
+        return ColorSpaces.hsbToColor(colors[3 * i], colors[3 * i + 1], colors[3 * i + 2]);
+    }
+
+    /**
+     * Marks a node as a white tile that can't be recolored. Used when restoring an artwork whose
+     * colors were already assigned (e.g. from the history).
+     */
+    void lockWhite(ArtworkNode node) {
+        node.setColor(Color.WHITE);
+        if (nodes == null) {
+            // The tree may still be under construction
+            lockedBeforeIndexing.add(node);
+            return;
+        }
+        lockedWhite[node.index] = true;
+        ColorSpaces.colorToHsb(Color.WHITE, colors, 3 * node.index);
+    }
+
     public void recolor(ColorSampler sampler) {
-        lockedWhiteNodes.clear();
-        if (forceWhiteNodes) {
-            // Ensure there's at least one white node at each level of the tree
-            Random random = new Random();
-
-            ArtworkNode.LevelsIterator levelsIterator = root.levelsIterator();
-            while (levelsIterator.hasNext()) {
-                List<ArtworkNode> level = levelsIterator.next();
-                for (ArtworkNode node : level) {
-                    node.setColor(sampler.nextColor());
+        recolor(root, sampler);
+    }
+
+    /**
+     * Recolors the subtree rooted at the given node. When forcing white nodes, the levels of the
+     * subtree that had a white node get a new one, as well as the levels that span the whole
+     * tree, so that each level of the tree still has at least one.
+     */
+    public void recolor(ArtworkNode subtree, ColorSampler sampler) {
+        indexNodes();
+        editLog.beforeEdit();
+        // Draw the colors from a fork, if possible, so that the edit log can replay them
+        ConstrainedColorSampler<?> replayable = (sampler instanceof ConstrainedColorSampler)
+                ? ((ConstrainedColorSampler<?>) sampler).fork()
+                : null;
+        if (replayable != null)
+            sampler = replayable;
+
+        int scope = subtree.index;
+        if (scratchHsb == null) {
+            scratchHsb = new float[3 * nodes.length];
+            scratchLocked = new boolean[nodes.length];
+        }
+        int[] scopeNodes = subtreeNodes(scope);
+        captureState(scopeNodes, scratchHsb, scratchLocked);
+        long whiteSeed = random.nextLong();
+        recolorState(scope, sampler, whiteSeed, scratchHsb, scratchLocked);
+        setState(scopeNodes, scratchHsb, scratchLocked);
+
+        int[] fixups = (minNeighborDistance > 0)
+                ? separateNeighborColors(sampler, scope)
+                : new int[0];
+        if (replayable != null)
+            editLog.recordRecolor(scope, replayable, whiteSeed, fixups);
+        else
+            editLog.recordSnapshot();
+    }
+
+    /**
+     * Computes the colors (3 HSB components per node) and the locked white nodes of a recolor of
+     * a subtree, without changing the nodes; the arrays must hold the current locked white
+     * nodes of the subtree. The same sampler sequence and white seed always give the same colors.
+     */
+    void recolorState(int subtree, ColorSampler sampler, long whiteSeed, float[] hsb,
+                      boolean[] locked) {
+        Random random = new Random(whiteSeed);
+        int level = depthOf(subtree);
+        // The subtree has one range of nodes per level (see subtreeNodes)
+        for (int first = subtree, end = subtree + 1; first < end; level++) {
+            boolean hadWhite = false;
+            for (int i = first; i < end; i++) {
+                hadWhite |= locked[i];
+                ColorSpaces.colorToHsb(sampler.nextColor(), hsb, 3 * i);
+                locked[i] = false;
+            }
+            boolean isWholeLevel = (end - first == levelStarts[level + 1] - levelStarts[level]);
+            if (forceWhiteNodes && (hadWhite || isWholeLevel)) {
+                // Ensure there's at least one white node at each level of the tree
+                int white = first + random.nextInt(end - first);
+                ColorSpaces.colorToHsb(Color.WHITE, hsb, 3 * white);
+                locked[white] = true;
+            }
+            int nextFirst = childStarts[first];
+            end = childStarts[end];
+            first = nextFirst;
+        }
+    }
+
+    /**
+     * Sets the colors (3 HSB components per node) and the locked white nodes of all the nodes.
+     */
+    void setState(float[] hsb, boolean[] locked) {
+        setState(subtreeNodes(ROOT), hsb, locked);
+    }
+
+    private void setState(int[] indexes, float[] hsb, boolean[] locked) {
+        for (int i : indexes) {
+            System.arraycopy(hsb, 3 * i, colors, 3 * i, 3);
+            lockedWhite[i] = locked[i];
+        }
+        updateViews(indexes);
+    }
+
+    void captureState(float[] hsb, boolean[] locked) {
+        captureState(subtreeNodes(ROOT), hsb, locked);
+    }
+
+    private void captureState(int[] indexes, float[] hsb, boolean[] locked) {
+        for (int i : indexes) {
+            System.arraycopy(colors, 3 * i, hsb, 3 * i, 3);
+            locked[i] = lockedWhite[i];
+        }
+    }
+
+    /**
+     * Shows the colors of the nodes (a subtree, in breadth-first order) in the views of the
+     * visible tiles, and marks the other nodes as stale.
+     */
+    private void updateViews(int[] indexes) {
+        int subtree = indexes[0];
+        reachable[subtree] = isReachable(subtree);
+        for (int i : indexes) {
+            if (i != subtree) {
+                int parent = parents[i];
+                reachable[i] = reachable[parent] && isShowingChildren(parent);
+            }
+            if (reachable[i] && isTile(i)) {
+                updateView(i);
+            } else if (!staleViews[i]) {
+                staleViews[i] = true;
+                numStaleViews++;
+            }
+        }
+    }
+
+    private void updateView(int i) {
+        nodes[i].setColorHSB(colors[3 * i], colors[3 * i + 1], colors[3 * i + 2]);
+        if (staleViews[i]) {
+            staleViews[i] = false;
+            numStaleViews--;
+        }
+    }
+
+    // Updates the view of a single node if it's visible, or marks it as stale
+    private void updateViewIfVisible(int i) {
+        if (isReachable(i) && isTile(i)) {
+            updateView(i);
+        } else if (!staleViews[i]) {
+            staleViews[i] = true;
+            numStaleViews++;
+        }
+    }
+
+    /**
+     * Updates the views of the stale nodes that became visible.
+     */
+    private void revealStaleViews() {
+        if (numStaleViews == 0)
+            return;
+        for (ArtworkNode tile : getVisibleTiles()) {
+            if (staleViews[tile.index])
+                updateView(tile.index);
+        }
+    }
+
+    private boolean isReachable(int node) {
+        for (int i = node; i != ROOT; ) {
+            i = parents[i];
+            if (!isShowingChildren(i))
+                return false;
+        }
+        return true;
+    }
+
+    // Shed nodes are hidden, so they don't show their children either
+    private boolean isShowingChildren(int node) {
+        return nodes[node] != null && nodes[node].isShowingChildren();
+    }
+
+    private boolean isTile(int node) {
+        return nodes[node].isLeaf() || !nodes[node].isShowingChildren();
+    }
+
+    /**
+     * Lists the nodes breadth-first, with their parents, first children and levels, if not
+     * done yet.
+     */
+    private void indexNodes() {
+        if (nodes != null)
+            return;
+        List<ArtworkNode> list = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        list.add(root);
+        starts.add(0);
+        int levelEnd = 1;
+        List<Integer> parentList = new ArrayList<>();
+        parentList.add(ROOT);
+        List<Integer> childStartList = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            if (i == levelEnd) {
+                // All the children of the previous level were added
+                starts.add(i);
+                levelEnd = list.size();
+            }
+            ArtworkNode node = list.get(i);
+            node.index = i;
+            childStartList.add(list.size());
+            for (ArtworkNode child : node.children()) {
+                list.add(child);
+                parentList.add(i);
+            }
+        }
+        starts.add(list.size());
+
+        int n = list.size();
+        nodes = list.toArray(new ArtworkNode[0]);
+        parents = new int[n];
+        childStarts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            parents[i] = parentList.get(i);
+            childStarts[i] = childStartList.get(i);
+        }
+        childStarts[n] = n;
+        levelStarts = new int[starts.size()];
+        for (int level = 0; level < levelStarts.length; level++)
+            levelStarts[level] = starts.get(level);
+
+        // All the views are up to date until the first edit
+        colors = new float[3 * n];
+        float[] nodeHsb = new float[3];
+        for (int i = 0; i < n; i++) {
+            nodes[i].getColorHSB(nodeHsb);
+            System.arraycopy(nodeHsb, 0, colors, 3 * i, 3);
+        }
+        staleViews = new boolean[n];
+        numStaleViews = 0;
+        reachable = new boolean[n];
+
+        orientations = new byte[n];
+        weights = new int[n];
+        lockedWhite = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            orientations[i] = (byte) nodes[i].getOrientation();
+            weights[i] = nodes[i].getWeight();
+            lockedWhite[i] = lockedBeforeIndexing.contains(nodes[i]);
+        }
+        lockedBeforeIndexing = null;
+    }
+
+    /**
+     * Returns the indexes of the nodes of a subtree, in breadth-first order. In the
+     * breadth-first order of the tree, the descendants of a node at a given depth are
+     * contiguous, so the subtree is just one range per level.
+     */
+    int[] subtreeNodes(int subtree) {
+        int size = 0;
+        for (int first = subtree, end = subtree + 1; first < end; ) {
+            size += end - first;
+            int nextFirst = childStarts[first];
+            end = childStarts[end];
+            first = nextFirst;
+        }
+        int[] indexes = new int[size];
+        int n = 0;
+        for (int first = subtree, end = subtree + 1; first < end; ) {
+            for (int i = first; i < end; i++)
+                indexes[n++] = i;
+            int nextFirst = childStarts[first];
+            end = childStarts[end];
+            first = nextFirst;
+        }
+        return indexes;
+    }
+
+    private int depthOf(int node) {
+        int depth = 0;
+        while (levelStarts[depth + 1] <= node)
+            depth++;
+        return depth;
+    }
+
+    /**
+     * Returns the node whose children include the given one, or null for the root.
+     */
+    public ArtworkNode getParent(ArtworkNode node) {
+        indexNodes();
+        return (node == root) ? null : nodes[parents[node.index]];
+    }
+
+    /**
+     * Returns true if the node is the root of the subtree or one of its descendants.
+     */
+    public boolean isInSubtree(ArtworkNode subtree, ArtworkNode node) {
+        indexNodes();
+        return isInSubtree(subtree.index, node.index);
+    }
+
+    private boolean isInSubtree(int subtree, int node) {
+        int i = node;
+        while (i > subtree)
+            i = parents[i];
+        return i == subtree;
+    }
+
+    int numIndexedNodes() {
+        indexNodes();
+        return nodes.length;
+    }
+
+    /**
+     * Makes the current colors the initial state of the artwork, which can't be undone.
+     */
+    void clearEditLog() {
+        editLog.clear();
+    }
+
+    /**
+     * Starts a continuous gesture (e.g. a drag of a seek bar): its changes of the same value of
+     * the same subtree are undone as a single edit.
+     */
+    public void beginContinuousEdit() {
+        editLog.beginGesture();
+    }
+
+    public void endContinuousEdit() {
+        editLog.endGesture();
+    }
+
+    public boolean canUndo() {
+        return editLog.canUndo();
+    }
+
+    public boolean canRedo() {
+        return editLog.canRedo();
+    }
+
+    /**
+     * Undoes the last edit.
+     * @return false if there was nothing to undo
+     */
+    public boolean undo() {
+        return editLog.undo();
+    }
+
+    /**
+     * Redoes the last undone edit.
+     * @return false if there was nothing to redo
+     */
+    public boolean redo() {
+        return editLog.redo();
+    }
+
+    /**
+     * Makes recolor ensure that adjacent visible tiles differ by at least the given distance in
+     * CIELAB (CIE76 delta E, e.g. 20 for clearly different colors). 0 disables the option.
+     *
+     * The adjacency graph of the visible tiles is built from their on-screen rectangles, so the
+     * option has effect only once the artwork has been laid out.
+     */
+    public void setMinNeighborColorDistance(float minDistance) {
+        this.minNeighborDistance = minDistance;
+    }
+
+    /**
+     * Greedy coloring of the adjacency graph: tiles are visited by decreasing number of
+     * neighbors, and each keeps its color if it's far enough from the colors already fixed
+     * around it, otherwise it takes the best of a few more samples.
+     * Only the tiles of the subtree and their neighbors are visited, so the cost is proportional
+     * to the size of the subtree: the tiles of a subtree are contiguous among the visible tiles,
+     * which are collected depth-first.
+     */
+    private int[] separateNeighborColors(ColorSampler sampler, int subtree) {
+        TileAdjacency graph = getAdjacency();
+        if (graph == null)
+            return new int[0];
+
+        int firstTile = Integer.MAX_VALUE;
+        int lastTile = -1;
+        for (int i : subtreeNodes(subtree)) {
+            int tile = tileOfNode[i];
+            if (tile != -1) {
+                firstTile = Math.min(firstTile, tile);
+                lastTile = Math.max(lastTile, tile);
+            }
+        }
+        if (lastTile == -1)
+            return new int[0];
+
+        // Local indexes: first the tiles of the subtree, then their neighbors out of it
+        int numOwnTiles = lastTile - firstTile + 1;
+        int maxLocalTiles = numOwnTiles;
+        for (int tile = firstTile; tile <= lastTile; tile++)
+            maxLocalTiles += graph.degree(tile);
+        int[] localTiles = new int[maxLocalTiles];
+        int numLocalTiles = 0;
+        for (int tile = firstTile; tile <= lastTile; tile++) {
+            localTileIndex[tile] = numLocalTiles;
+            localTiles[numLocalTiles++] = tile;
+        }
+        for (int tile = firstTile; tile <= lastTile; tile++) {
+            for (int k = 0; k < graph.degree(tile); k++) {
+                int neighbor = graph.neighbor(tile, k);
+                if (localTileIndex[neighbor] == -1) {
+                    localTileIndex[neighbor] = numLocalTiles;
+                    localTiles[numLocalTiles++] = neighbor;
                 }
-                int whiteNodeIndex = random.nextInt(level.size());
-                ArtworkNode whiteNode = level.get(whiteNodeIndex);
-                whiteNode.setColor(Color.WHITE);
-                lockedWhiteNodes.add(whiteNode);
             }
-        } else {
-            root.traverseBreadthFirst(node ->
-                    node.setColor(sampler.nextColor()));
         }
+
+        float[] labs = new float[3 * numLocalTiles];
+        boolean[] fixed = new boolean[numLocalTiles];
+        float[] lab = new float[3];
+        float[] candidateLab = new float[3];
+        float minDistanceSquared = minNeighborDistance * minNeighborDistance;
+
+        for (int local = 0; local < numLocalTiles; local++) {
+            ArtworkNode tile = visibleTiles.get(localTiles[local]);
+            ColorSpaces.colorToLab(getColor(tile), lab);
+            System.arraycopy(lab, 0, labs, 3 * local, 3);
+            // White tiles and tiles out of the subtree can't change: they are constraints for
+            // their neighbors
+            fixed[local] = lockedWhite[tile.index] || local >= numOwnTiles;
+        }
+        List<Integer> order = new ArrayList<>(numOwnTiles);
+        for (int local = 0; local < numOwnTiles; local++)
+            order.add(local);
+        order.sort((a, b) -> graph.degree(localTiles[b]) - graph.degree(localTiles[a]));
+
+        // Node and new color of each tile that changed, for the edit log
+        int[] changes = new int[2 * numOwnTiles];
+        int numChanges = 0;
+
+        for (int local : order) {
+            if (fixed[local])
+                continue;
+            int tile = localTiles[local];
+            ArtworkNode node = visibleTiles.get(tile);
+            int color = getColor(node);
+            int bestColor = color;
+            System.arraycopy(labs, 3 * local, lab, 0, 3);
+            float bestDistance = minNeighborDistanceSquared(graph, tile, lab, labs, fixed);
+            for (int k = 0; k < MAX_NEIGHBOR_COLOR_TRIES && bestDistance < minDistanceSquared;
+                 k++) {
+                int candidate = sampler.nextColor();
+                ColorSpaces.colorToLab(candidate, candidateLab);
+                float distance = minNeighborDistanceSquared(graph, tile, candidateLab, labs,
+                        fixed);
+                if (distance > bestDistance) {
+                    bestDistance = distance;
+                    bestColor = candidate;
+                    System.arraycopy(candidateLab, 0, lab, 0, 3);
+                }
+            }
+            if (bestColor != color) {
+                // Convert like the edit log does when replaying the change
+                ColorSpaces.colorToHsb(bestColor, colors, 3 * node.index);
+                updateView(node.index);
+                changes[numChanges++] = node.index;
+                changes[numChanges++] = bestColor;
+            }
+            System.arraycopy(lab, 0, labs, 3 * local, 3);
+            fixed[local] = true;
+        }
+
+        for (int local = 0; local < numLocalTiles; local++)
+            localTileIndex[localTiles[local]] = -1;
+        return Arrays.copyOf(changes, numChanges);
+    }
+
+    // The colors are indexed by the local indexes of separateNeighborColors
+    private float minNeighborDistanceSquared(TileAdjacency graph, int tile, float[] lab,
+                                             float[] labs, boolean[] fixed) {
+        float min = Float.MAX_VALUE;
+        for (int k = 0; k < graph.degree(tile); k++) {
+            int neighbor = localTileIndex[graph.neighbor(tile, k)];
+            if (!fixed[neighbor])
+                continue;
+            int offset = 3 * neighbor;
+            float dl = lab[0] - labs[offset];
+            float da = lab[1] - labs[offset + 1];
+            float db = lab[2] - labs[offset + 2];
+            min = Math.min(min, dl * dl + da * da + db * db);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the adjacency graph of the visible tiles, building it if the cached one is stale,
+     * or null if the artwork was not laid out yet.
+     */
+    TileAdjacency getAdjacency() {
+        if (adjacency != null)
+            return adjacency;
+        View rootView = root.getView();
+        if (rootView.getWidth() == 0 || rootView.getHeight() == 0)
+            return null;
+
+        List<ArtworkNode> tiles = getVisibleTiles();
+        int n = tiles.size();
+        int[] left = new int[n];
+        int[] top = new int[n];
+        int[] right = new int[n];
+        int[] bottom = new int[n];
+        int maxGap = 1;
+        for (int i = 0; i < n; i++) {
+            View view = tiles.get(i).getView();
+            int x = 0;
+            int y = 0;
+            for (View v = view; v != rootView; v = (View) v.getParent()) {
+                x += v.getLeft();
+                y += v.getTop();
+            }
+            left[i] = x;
+            top[i] = y;
+            right[i] = x + view.getWidth();
+            bottom[i] = y + view.getHeight();
+            ViewGroup.LayoutParams params = view.getLayoutParams();
+            if (params instanceof ViewGroup.MarginLayoutParams) {
+                ViewGroup.MarginLayoutParams margins = (ViewGroup.MarginLayoutParams) params;
+                maxGap = Math.max(maxGap, Math.max(margins.leftMargin, margins.topMargin) + 1);
+            }
+        }
+        visibleTiles = tiles;
+        tileOfNode = new int[nodes.length];
+        Arrays.fill(tileOfNode, -1);
+        for (int i = 0; i < n; i++)
+            tileOfNode[tiles.get(i).index] = i;
+        localTileIndex = new int[n];
+        Arrays.fill(localTileIndex, -1);
+        adjacency = TileAdjacency.build(left, top, right, bottom, n, maxGap);
+        return adjacency;
+    }
+
+    /**
+     * Returns a Context-free copy of the artwork (shape, colors, locked white nodes and
+     * visibility), whose root has the size of the artwork view.
+     */
+    public ArtworkModel toModel() {
+        indexNodes();
+        TileTree tree = new TileTree();
+        tree.addRoot(root.getWidth(), root.getHeight());
+        // Nodes are indexed breadth-first, so the children are added in the same order. The
+        // shape is taken from the arrays, which cover the shed nodes too.
+        int[] childWeights = new int[0];
+        for (int i = 0; i < nodes.length; i++) {
+            int numChildren = numChildren(i);
+            if (numChildren == 0)
+                continue;
+            if (childWeights.length < numChildren)
+                childWeights = new int[numChildren];
+            System.arraycopy(weights, childStarts[i], childWeights, 0, numChildren);
+            tree.addChildren(i, orientations[i], childWeights, numChildren);
+        }
+
+        ArtworkModel model = new ArtworkModel(tree, forceWhiteNodes);
+        for (int i = 0; i < nodes.length; i++) {
+            if (lockedWhite[i])
+                model.lockWhite(i);
+            else
+                model.setColor(i, getColor(i));
+            model.setShowingChildren(i, isShowingChildren(i));
+        }
+        return model;
+    }
+
+    /**
+     * Returns the tiles currently shown, i.e. the nodes in "leaf mode" whose ancestors are all
+     * showing their children.
+     */
+    List<ArtworkNode> getVisibleTiles() {
+        List<ArtworkNode> tiles = new ArrayList<>();
+        collectVisibleLeaves(root, tiles);
+        return tiles;
+    }
+
+    /**
+     * Returns the tiles of the given subtree that getVisibleTiles would return, assuming its
+     * ancestors are all showing their children.
+     */
+    List<ArtworkNode> getVisibleTiles(ArtworkNode subtree) {
+        List<ArtworkNode> tiles = new ArrayList<>();
+        collectVisibleLeaves(subtree, tiles);
+        return tiles;
+    }
+
+    void invalidateAdjacency() {
+        adjacency = null;
+        visibleTiles = null;
+        tileOfNode = null;
+        localTileIndex = null;
+    }
+
+    private static void collectVisibleLeaves(ArtworkNode node, List<ArtworkNode> leaves) {
+        if (!node.isShowingChildren() || node.isLeaf()) {
+            leaves.add(node);
+            return;
+        }
+        Iterator<ArtworkNode> iterator = node.childrenIterator();
+        while (iterator.hasNext())
+            collectVisibleLeaves(iterator.next(), leaves);
     }
 
     public void setStrokeWidth(float strokeWidthInDp) {
-        int strokeWidthInPx = Util.dpToPx(root.getContext(), strokeWidthInDp);
+        strokeWidthInPx = Util.dpToPx(root.getContext(), strokeWidthInDp);
         root.traverseBreadthFirst(node ->
                 node.setMarginBetweenChildren(strokeWidthInPx));
+        invalidateAdjacency();
+    }
+
+    public void setFillStyle(FillStyle style, TileShaderCache cache) {
+        setFillStyle(root, style, cache);
+    }
+
+    /**
+     * Sets the fill style of all the nodes of a subtree, including the internal ones, which show
+     * it when they become tiles. Styles are not colors, so the edit log doesn't record them.
+     */
+    public void setFillStyle(ArtworkNode subtree, FillStyle style, TileShaderCache cache) {
+        indexNodes();
+        if (fillStyles == null)
+            fillStyles = new FillStyle[nodes.length];
+        shaderCache = cache;
+        for (int i : subtreeNodes(subtree.index)) {
+            fillStyles[i] = style;
+            if (nodes[i] != null)
+                nodes[i].setFillStyle(style, cache);
+        }
+    }
+
+    /**
+     * Changes the hue of a single node, recording the change in the edit log.
+     */
+    public void setHue(ArtworkNode node, float hue) {
+        indexNodes();
+        editLog.beforeEdit();
+        float oldHue = colors[3 * node.index];
+        applyHue(node.index, hue);
+        editLog.recordSetHue(node.index, oldHue, hue);
+    }
+
+    void applyHue(int node, float hue) {
+        colors[3 * node] = hue;
+        updateViewIfVisible(node);
     }
 
     public void setSaturation(float saturation) {
-        root.traverseBreadthFirst(node -> {
-            if (!lockedWhiteNodes.contains(node))
-                node.setSaturation(saturation);
-        });
+        setSaturation(root, saturation);
+    }
+
+    public void setSaturation(ArtworkNode subtree, float saturation) {
+        indexNodes();
+        editLog.beforeEdit();
+        float oldSaturation = (subtree == root)
+                ? this.saturation
+                : colors[3 * subtree.index + 1];
+        applySaturation(subtree.index, saturation);
+        editLog.recordSetSaturation(subtree.index, oldSaturation, saturation);
+    }
+
+    void applySaturation(int subtree, float saturation) {
+        if (subtree == ROOT)
+            this.saturation = saturation;
+        int[] indexes = subtreeNodes(subtree);
+        for (int i : indexes) {
+            if (!lockedWhite[i])
+                colors[3 * i + 1] = saturation;
+        }
+        updateViews(indexes);
+    }
+
+    // Sets the saturation of the whole tree without changing the colors, which already have it
+    // (e.g. they were just sampled with it, or restored by the edit log)
+    void restoreSaturation(float saturation) {
+        this.saturation = saturation;
+    }
+
+    /**
+     * Returns the saturation set on the whole tree by the last (not undone) change, or NaN if
+     * unknown.
+     */
+    public float getSaturation() {
+        return saturation;
     }
 
     public void setBrightness(float brightness) {
-        root.traverseBreadthFirst(node -> {
-            if (!lockedWhiteNodes.contains(node))
-                node.setBrightness(brightness);
-        });
+        setBrightness(root, brightness);
+    }
+
+    public void setBrightness(ArtworkNode subtree, float brightness) {
+        indexNodes();
+        editLog.beforeEdit();
+        float oldBrightness = (subtree == root)
+                ? this.brightness
+                : colors[3 * subtree.index + 2];
+        applyBrightness(subtree.index, brightness);
+        editLog.recordSetBrightness(subtree.index, oldBrightness, brightness);
+    }
+
+    void applyBrightness(int subtree, float brightness) {
+        if (subtree == ROOT)
+            this.brightness = brightness;
+        int[] indexes = subtreeNodes(subtree);
+        for (int i : indexes) {
+            if (!lockedWhite[i])
+                colors[3 * i + 2] = brightness;
+        }
+        updateViews(indexes);
+    }
+
+    void restoreBrightness(float brightness) {
+        this.brightness = brightness;
+    }
+
+    public float getBrightness() {
+        return brightness;
     }
 
     public void setMinLayoutSize(float sizeInDp) {
         int sizeInPx = Util.dpToPx(root.getContext(), sizeInDp);
+        if (numShedNodes > 0) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (isShedRoot(i) && nodes[i].leafView.getWidth() >= sizeInPx
+                        && nodes[i].leafView.getHeight() >= sizeInPx)
+                    rebuildShedNodes(i);
+            }
+        }
         root.traverseBreadthFirst(node -> {
             if (!node.isLeaf())
                 node.showChildren(node.leafView.getWidth() >= sizeInPx
                         && node.leafView.getHeight() >= sizeInPx);
         });
+        invalidateAdjacency();
+        revealStaleViews();
     }
 
     public void setDepthLimit(int depthLimit) {
         setDepthLimit(root, depthLimit);
     }
 
-    private static void setDepthLimit(ArtworkNode node, int depthLimit) {
+    /**
+     * Shows the nodes of the subtree down to the given depth, counted from the root of the tree
+     * like for the whole tree, replacing the limits set before on the subtree and inside it.
+     */
+    public void setDepthLimit(ArtworkNode subtree, int depthLimit) {
+        indexNodes();
+        int oldDepthLimit = getDepthLimit(subtree.index);
+        int[] replacedLimits = getNestedDepthLimits(subtree.index);
+        applyDepthLimit(subtree.index, depthLimit);
+        // The first limit set is part of the initial state, not an edit
+        if (oldDepthLimit != NO_DEPTH_LIMIT) {
+            editLog.beforeEdit();
+            editLog.recordSetDepthLimit(subtree.index, oldDepthLimit, depthLimit,
+                    replacedLimits);
+        }
+    }
+
+    /**
+     * Returns the limits set on the subtree and inside it, which a new limit on the subtree
+     * replaces, as pairs of node and limit in breadth-first order, or null if there are none.
+     */
+    private int[] getNestedDepthLimits(int subtree) {
+        if (subtreeDepthLimits == null)
+            return null;
+        int[] indexes = subtreeNodes(subtree);
+        int count = 0;
+        for (int i : indexes) {
+            if (subtreeDepthLimits[i] != NO_DEPTH_LIMIT)
+                count++;
+        }
+        if (count == 0)
+            return null;
+        int[] limits = new int[2 * count];
+        int k = 0;
+        for (int i : indexes) {
+            if (subtreeDepthLimits[i] != NO_DEPTH_LIMIT) {
+                limits[k++] = i;
+                limits[k++] = subtreeDepthLimits[i];
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Undoes a change of the depth limit of a subtree: applies the limit it had before, then
+     * the limits set inside it that the change replaced (see getNestedDepthLimits).
+     */
+    void restoreDepthLimits(int subtree, int depthLimit, int[] replacedLimits) {
+        applyDepthLimit(subtree, depthLimit);
+        // The old limit may have been inherited rather than set on the subtree
+        if (subtree != ROOT)
+            subtreeDepthLimits[subtree] = NO_DEPTH_LIMIT;
+        if (replacedLimits != null) {
+            // Breadth-first, so the limits of the inner subtrees are applied last
+            for (int k = 0; k < replacedLimits.length; k += 2)
+                applyDepthLimit(replacedLimits[k], replacedLimits[k + 1]);
+        }
+    }
+
+    /**
+     * Returns the limits set on subtrees rather than on the whole tree, as pairs of node and
+     * limit in breadth-first order, or null if there are none.
+     */
+    int[] getSubtreeDepthLimits() {
+        indexNodes();
+        return getNestedDepthLimits(ROOT);
+    }
+
+    /**
+     * Applies limits returned by getSubtreeDepthLimits, on this artwork or on one decoded from
+     * its description (the indexes are the same), without recording an edit.
+     */
+    void restoreSubtreeDepthLimits(int[] limits) {
+        indexNodes();
+        for (int k = 0; k < limits.length; k += 2)
+            applyDepthLimit(limits[k], limits[k + 1]);
+    }
+
+    void applyDepthLimit(int subtree, int depthLimit) {
+        if (subtree == ROOT) {
+            this.depthLimit = depthLimit;
+            subtreeDepthLimits = null;
+        } else {
+            if (subtreeDepthLimits == null) {
+                subtreeDepthLimits = new int[nodes.length];
+                Arrays.fill(subtreeDepthLimits, NO_DEPTH_LIMIT);
+            }
+            for (int i : subtreeNodes(subtree))
+                subtreeDepthLimits[i] = NO_DEPTH_LIMIT;
+            subtreeDepthLimits[subtree] = depthLimit;
+        }
+        if (numShedNodes > 0) {
+            for (int i : subtreeNodes(subtree)) {
+                if (isShedRoot(i) && depthOf(i) < depthLimit)
+                    rebuildShedNodes(i);
+            }
+        }
+        // A shed subtree is hidden: its limit is applied when it's rebuilt
+        if (nodes[subtree] != null)
+            limitDepth(nodes[subtree], depthLimit - depthOf(subtree));
+        invalidateAdjacency();
+        revealStaleViews();
+    }
+
+    /**
+     * Returns the depth limit of the whole tree set by the last (not undone) change, or
+     * NO_DEPTH_LIMIT if unknown.
+     */
+    public int getDepthLimit() {
+        return depthLimit;
+    }
+
+    // Limit set on the subtree or on the closest subtree that includes it
+    private int getDepthLimit(int subtree) {
+        if (subtreeDepthLimits != null) {
+            for (int i = subtree; i != ROOT; i = parents[i]) {
+                if (subtreeDepthLimits[i] != NO_DEPTH_LIMIT)
+                    return subtreeDepthLimits[i];
+            }
+        }
+        return depthLimit;
+    }
+
+    private static void limitDepth(ArtworkNode node, int depthLimit) {
         if (depthLimit <= 0)
             node.showChildren(false);
         else if (!node.isLeaf()) {
@@ -106,12 +1017,223 @@ public class Artwork {
             Iterator<ArtworkNode> iterator = node.childrenIterator();
             depthLimit--;
             while (iterator.hasNext())
-                setDepthLimit(iterator.next(), depthLimit);
+                limitDepth(iterator.next(), depthLimit);
+        }
+    }
+
+    /**
+     * Counts the nodes of the artwork, including the shed ones.
+     */
+    public int countNodes() {
+        indexNodes();
+        return nodes.length;
+    }
+
+    /**
+     * Counts the nodes whose views were dropped by shedHiddenSubtrees and not rebuilt yet.
+     */
+    public int countShedNodes() {
+        return numShedNodes;
+    }
+
+    /**
+     * Returns true if the node is part of the artwork, i.e. it was not shed.
+     */
+    public boolean contains(ArtworkNode node) {
+        indexNodes();
+        return node.index >= 0 && node.index < nodes.length && nodes[node.index] == node;
+    }
+
+    /**
+     * Drops the nodes, and so the views, of the subtrees hidden under the visible tiles, e.g.
+     * when memory is low. Their shape and colors stay in the flat arrays, from which they are
+     * rebuilt as they were when a depth limit or layout size change reveals them, so edits keep
+     * applying to them meanwhile.
+     * @return the number of nodes dropped
+     */
+    public int shedHiddenSubtrees() {
+        indexNodes();
+        int numShed = 0;
+        for (ArtworkNode tile : getVisibleTiles()) {
+            if (tile.isLeaf())
+                continue;
+            int[] indexes = subtreeNodes(tile.index);
+            for (int k = 1; k < indexes.length; k++) {
+                int i = indexes[k];
+                nodes[i] = null;
+                // Their views are gone: the rebuilt ones must be updated
+                if (!staleViews[i]) {
+                    staleViews[i] = true;
+                    numStaleViews++;
+                }
+            }
+            tile.removeChildren();
+            numShed += indexes.length - 1;
         }
+        numShedNodes += numShed;
+        return numShed;
+    }
+
+    // Whether the node is a node whose descendants were shed
+    private boolean isShedRoot(int node) {
+        return nodes[node] != null && nodes[node].isLeaf() && numChildren(node) > 0;
+    }
+
+    // Shape of the tree by index, including the shed nodes (e.g. for ArtworkCodec)
+
+    int numChildren(int node) {
+        return childStarts[node + 1] - childStarts[node];
+    }
+
+    int firstChild(int node) {
+        return childStarts[node];
+    }
+
+    int getOrientation(int node) {
+        return orientations[node];
+    }
+
+    int getWeight(int node) {
+        return weights[node];
+    }
+
+    boolean isLockedWhite(int node) {
+        return lockedWhite[node];
+    }
+
+    /**
+     * Rebuilds the shed descendants of a node, in breadth-first order so that parents come
+     * first, taking the nodes from the pool if there's one.
+     */
+    private void rebuildShedNodes(int shedRoot) {
+        Context context = root.getContext();
+        int[] indexes = subtreeNodes(shedRoot);
+        for (int k = 1; k < indexes.length; k++) {
+            int i = indexes[k];
+            ArtworkNode node = (pool != null) ? pool.obtain() : new ArtworkNode(context, 0);
+            node.index = i;
+            node.childrenView.setOrientation(orientations[i]);
+            if (numChildren(i) == 0)
+                node.showChildren(false);
+            nodes[parents[i]].addChild(node, weights[i]);
+            nodes[i] = node;
+            if (clickListener != null)
+                node.setOnClickListener(clickListener);
+            if (longClickListener != null)
+                node.setOnLongClickListener(longClickListener);
+            if (fillStyles != null && fillStyles[i] != null)
+                node.setFillStyle(fillStyles[i], shaderCache);
+            updateView(i);
+        }
+        for (int i : indexes)
+            nodes[i].setMarginBetweenChildren(strokeWidthInPx);
+        numShedNodes -= indexes.length - 1;
+        invalidateAdjacency();
+    }
+
+    /**
+     * Sets a pool from which the shed nodes are taken when they are rebuilt.
+     */
+    void setNodePool(ArtworkNodePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Estimates the memory retained by the artwork, by kind.
+     */
+    public RetainedSize estimateRetainedSize() {
+        indexNodes();
+        int numLiveNodes = nodes.length - numShedNodes;
+        long views = (long) numLiveNodes * ArtworkNode.VIEWS_PER_NODE * VIEW_BYTES;
+        long nodeObjects = (long) numLiveNodes * NODE_BYTES;
+
+        int n = nodes.length;
+        // References, indexes, HSB colors, flags (stale, reachable, locked) and shape
+        long arrays = 4L * n + 4L * (2 * n + 1) + 4L * levelStarts.length + 12L * n + 3L * n
+                + 5L * n;
+        if (scratchHsb != null)
+            arrays += 13L * n;
+        if (subtreeDepthLimits != null)
+            arrays += 4L * n;
+        if (fillStyles != null)
+            arrays += 4L * n;
+
+        long caches = editLog.estimateRetainedBytes();
+        if (adjacency != null)
+            caches += 4L * (adjacency.numTiles() + 1) + 8L * adjacency.numEdges()
+                    + 4L * visibleTiles.size() + 4L * tileOfNode.length
+                    + 4L * localTileIndex.length;
+        return new RetainedSize(nodeObjects, views, arrays, caches);
+    }
+
+    /**
+     * Memory retained by an artwork, in bytes.
+     */
+    public static class RetainedSize {
+        public final long nodes;        // ArtworkNode objects
+        public final long views;        // their views
+        public final long arrays;       // colors, indexes and shape
+        public final long caches;       // edit log and adjacency graph
+
+        RetainedSize(long nodes, long views, long arrays, long caches) {
+            this.nodes = nodes;
+            this.views = views;
+            this.arrays = arrays;
+            this.caches = caches;
+        }
+
+        public long total() {
+            return nodes + views + arrays + caches;
+        }
+    }
+
+    /**
+     * Counts the tiles actually shown, i.e. the nodes in "leaf mode" whose ancestors are all
+     * showing their children.
+     */
+    public int countVisibleLeaves() {
+        return countVisibleLeaves(root);
+    }
+
+    private static int countVisibleLeaves(ArtworkNode node) {
+        if (!node.isShowingChildren() || node.isLeaf())
+            return 1;
+        int count = 0;
+        Iterator<ArtworkNode> iterator = node.childrenIterator();
+        while (iterator.hasNext())
+            count += countVisibleLeaves(iterator.next());
+        return count;
+    }
+
+    /**
+     * Gives all the nodes back to the pool. The artwork can't be used anymore after this call.
+     */
+    public void recycle(ArtworkNodePool pool) {
+        editLog.clear();
+        nodes = null;
+        lockedWhite = null;
+        orientations = null;
+        weights = null;
+        fillStyles = null;
+        colors = null;
+        staleViews = null;
+        numStaleViews = 0;
+        scratchHsb = null;
+        scratchLocked = null;
+        invalidateAdjacency();
+        root.getView().removeOnLayoutChangeListener(layoutChangeListener);
+        pool.releaseTree(root);
     }
 
     public void setOnNodesClickListener(ArtworkNode.OnClickListener listener) {
+        clickListener = listener;
         root.traverseBreadthFirst(node ->
                 node.setOnClickListener(listener));
     }
+
+    public void setOnNodesLongClickListener(ArtworkNode.OnLongClickListener listener) {
+        longClickListener = listener;
+        root.traverseBreadthFirst(node ->
+                node.setOnLongClickListener(listener));
+    }
 }
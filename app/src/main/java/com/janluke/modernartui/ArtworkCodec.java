@@ -0,0 +1,115 @@
+package com.janluke.modernartui;
+
+import android.content.Context;
+import android.widget.LinearLayout;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Converts an Artwork to a compact binary description and back. The description contains only
+ * what is needed to rebuild the tree (shape, layout weights, colors and locked white tiles), so
+ * it's a few bytes per tile instead of the three Views held by each ArtworkNode.
+ *
+ * Layout: a header (version, flags, number of nodes) followed by the nodes in depth-first
+ * pre-order, NODE_SIZE bytes each: flags, number of children, layout weight, color.
+ */
+public class ArtworkCodec {
+
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 6;
+    static final int NODE_SIZE = 8;
+
+    // Header flags
+    static final int FLAG_FORCE_WHITE_NODES = 1;
+
+    // Node flags
+    static final int NODE_VERTICAL = 1;
+    static final int NODE_LOCKED_WHITE = 1 << 1;
+
+    public static byte[] encode(Artwork artwork) {
+        int numNodes = artwork.countNodes();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + numNodes * NODE_SIZE);
+        buffer.put(VERSION);
+        buffer.put((byte) (artwork.isForcingWhiteNodes() ? FLAG_FORCE_WHITE_NODES : 0));
+        buffer.putInt(numNodes);
+        encodeNode(artwork, Artwork.ROOT, buffer);
+        return buffer.array();
+    }
+
+    // Works on the indexes, which cover the nodes shed by the artwork too
+    private static void encodeNode(Artwork artwork, int node, ByteBuffer buffer) {
+        int flags = 0;
+        if (artwork.getOrientation(node) == LinearLayout.VERTICAL)
+            flags |= NODE_VERTICAL;
+        if (artwork.isLockedWhite(node))
+            flags |= NODE_LOCKED_WHITE;
+        int numChildren = artwork.numChildren(node);
+        buffer.put((byte) flags);
+        buffer.put((byte) numChildren);
+        buffer.putShort((short) artwork.getWeight(node));
+        buffer.putInt(artwork.getColor(node));
+
+        int firstChild = artwork.firstChild(node);
+        for (int i = 0; i < numChildren; i++)
+            encodeNode(artwork, firstChild + i, buffer);
+    }
+
+    /**
+     * Rebuilds an artwork from a description produced by {@link #encode(Artwork)}.
+     * The stroke width is not part of the description and must be set by the caller.
+     */
+    public static Artwork decode(Context context, ByteBuffer buffer) {
+        return decode(context, null, buffer);
+    }
+
+    /**
+     * Like {@link #decode(Context, ByteBuffer)}, but takes the nodes from a pool, if not null.
+     */
+    public static Artwork decode(Context context, ArtworkNodePool pool, ByteBuffer buffer) {
+        byte version = buffer.get();
+        Util.checkArg(version == VERSION, "unsupported artwork description version: " + version);
+        boolean forceWhiteNodes = (buffer.get() & FLAG_FORCE_WHITE_NODES) != 0;
+        int numNodes = buffer.getInt();
+        Util.checkArg(numNodes > 0 && buffer.remaining() >= numNodes * NODE_SIZE,
+                "truncated artwork description");
+
+        ArtworkNode root = newNode(context, pool);
+        Artwork artwork = new Artwork(root, forceWhiteNodes);
+        if (pool != null)
+            artwork.setNodePool(pool);
+        decodeNode(artwork, root, pool, buffer);
+        return artwork;
+    }
+
+    private static ArtworkNode newNode(Context context, ArtworkNodePool pool) {
+        return (pool != null) ? pool.obtain() : new ArtworkNode(context, 0);
+    }
+
+    private static void decodeNode(Artwork artwork, ArtworkNode node, ArtworkNodePool pool,
+                                   ByteBuffer buffer) {
+        int flags = buffer.get();
+        int numChildren = buffer.get() & 0xFF;
+        buffer.getShort();    // the weight was already consumed by the parent
+        int color = buffer.getInt();
+
+        node.childrenView.setOrientation(((flags & NODE_VERTICAL) != 0)
+                ? LinearLayout.VERTICAL
+                : LinearLayout.HORIZONTAL);
+        if ((flags & NODE_LOCKED_WHITE) != 0)
+            artwork.lockWhite(node);
+        else
+            node.setColor(color);
+
+        if (numChildren == 0) {
+            node.showChildren(false);
+            return;
+        }
+        for (int i = 0; i < numChildren; i++) {
+            int weight = buffer.getShort(buffer.position() + 2);
+            ArtworkNode child = newNode(node.getContext(), pool);
+            node.addChild(child, weight);
+            decodeNode(artwork, child, pool, buffer);
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.janluke.modernartui;
+
+import com.janluke.modernartui.colors.ColorSpaces;
+import com.janluke.modernartui.colors.ConstrainedColorSampler;
+
+
+/**
+ * Undo/redo history of the edits of an Artwork, stored as compact deltas in a ring buffer of
+ * fixed-size int records, so that the memory taken by an edit doesn't depend on the size of the
+ * artwork:
+ *  - a tile hue change stores the index of the node and its old and new hues;
+ *  - a saturation, brightness or depth limit change stores the root of the subtree it applies
+ *    to and the old and new values (plus, for the depth limit, the limits set inside the
+ *    subtree that it replaced); the changes of the same value of the same subtree made during
+ *    one continuous gesture (e.g. a drag of a seek bar) are merged in one edit;
+ *  - a recolor stores the root of its subtree and the seed used to pick the white nodes, and
+ *    refers to the fork of the color sampler that produced the colors, which can restart its
+ *    sequence from its seed; the few tiles changed afterwards to separate adjacent colors follow
+ *    as FIXUP records. Recolors with samplers that can't be forked are stored as a snapshot of
+ *    the colors instead.
+ *
+ * Hue and depth limit changes are undone by applying their inverse. The other edits can't be
+ * inverted, so undoing them recomputes the colors into arrays by replaying the log from the last
+ * recolor of the whole tree (or from the base state, i.e. the state before the oldest record),
+ * and then updates the nodes in one bulk pass. When the buffer is full, the oldest edits are
+ * applied to the base state and dropped.
+ *
+ * Nodes are identified by their index in Artwork, and colors are kept as HSB (like in the
+ * nodes), so that restoring the saturation of a gray tile brings its hue back.
+ */
+class ArtworkEditLog {
+
+    static final int DEFAULT_CAPACITY = 1024;   // in records
+
+    // Record types. The first field is always a node: the tile of single-tile edits, the root
+    // of the subtree of the others.
+    static final int SET_HUE = 1;               // node, old hue, new hue
+    static final int SET_SATURATION = 2;        // node, new value, old value
+    static final int SET_BRIGHTNESS = 3;        // node, new value, old value
+    static final int SET_DEPTH_LIMIT = 4;       // node, new limit, old limit (replaced limits)
+    static final int RECOLOR = 5;               // node, white seed (high, low), number of fixups
+    static final int FIXUP = 6;                 // node, color, distance from its RECOLOR
+    static final int SNAPSHOT = 7;              // (state in the reference)
+
+    static final int RECORD_SIZE = 5;
+
+    private final Artwork artwork;
+    private final int capacity;
+    private final int[] records;
+    // Sampler of RECOLOR, state of SNAPSHOT, replaced limits of SET_DEPTH_LIMIT
+    private final Object[] references;
+
+    // Sequence numbers of the records: [start, end) are stored, [start, cursor) are applied
+    private long start;
+    private long cursor;
+    private long end;
+
+    // State before the oldest record, captured before the first edit
+    private State base;
+
+    // Whether a continuous gesture is in progress, and the record of its changes (or -1)
+    private boolean inGesture;
+    private long gestureRecord = -1;
+
+    ArtworkEditLog(Artwork artwork, int capacity) {
+        Util.checkArg(capacity >= 2, "illegal capacity");
+        this.artwork = artwork;
+        this.capacity = capacity;
+        this.records = new int[RECORD_SIZE * capacity];
+        this.references = new Object[capacity];
+    }
+
+    ArtworkEditLog(Artwork artwork) {
+        this(artwork, DEFAULT_CAPACITY);
+    }
+
+    boolean canUndo() {
+        return cursor > start;
+    }
+
+    boolean canRedo() {
+        return cursor < end;
+    }
+
+    /**
+     * Forgets all the edits: the current state becomes the new base state.
+     */
+    void clear() {
+        for (long seq = start; seq < end; seq++)
+            references[slot(seq)] = null;
+        start = end;
+        cursor = end;
+        base = null;
+        gestureRecord = -1;
+    }
+
+    /**
+     * Starts a continuous gesture: its changes of a value are merged in a single edit.
+     */
+    void beginGesture() {
+        inGesture = true;
+        gestureRecord = -1;
+    }
+
+    void endGesture() {
+        inGesture = false;
+        gestureRecord = -1;
+    }
+
+    /**
+     * Estimates the memory taken by the records and the states they refer to, in bytes.
+     */
+    long estimateRetainedBytes() {
+        long bytes = 4L * records.length + 4L * references.length;
+        if (base != null)
+            bytes += base.sizeInBytes();
+        for (long seq = start; seq < end; seq++) {
+            Object reference = references[slot(seq)];
+            if (reference instanceof State)
+                bytes += ((State) reference).sizeInBytes();
+            else if (reference instanceof int[])
+                bytes += 4L * ((int[]) reference).length;
+        }
+        return bytes;
+    }
+
+    // --- Recording
+
+    /**
+     * Captures the base state, if not done yet. Must be called before applying each edit.
+     */
+    void beforeEdit() {
+        if (base == null)
+            base = captureState();
+    }
+
+    void recordSetHue(int node, float oldHue, float newHue) {
+        if (oldHue != newHue)
+            append(SET_HUE, node, Float.floatToIntBits(oldHue), Float.floatToIntBits(newHue), 0,
+                    null);
+    }
+
+    void recordSetSaturation(int subtree, float oldValue, float newValue) {
+        recordSetValue(SET_SATURATION, subtree, Float.floatToIntBits(oldValue),
+                Float.floatToIntBits(newValue), null);
+    }
+
+    void recordSetBrightness(int subtree, float oldValue, float newValue) {
+        recordSetValue(SET_BRIGHTNESS, subtree, Float.floatToIntBits(oldValue),
+                Float.floatToIntBits(newValue), null);
+    }
+
+    /**
+     * @param replacedLimits limits set inside the subtree before the change, as pairs of node
+     *                       and limit, or null
+     */
+    void recordSetDepthLimit(int subtree, int oldLimit, int newLimit, int[] replacedLimits) {
+        recordSetValue(SET_DEPTH_LIMIT, subtree, oldLimit, newLimit, replacedLimits);
+    }
+
+    private void recordSetValue(int type, int subtree, int oldValue, int newValue,
+                                Object reference) {
+        long last = end - 1;
+        if (inGesture && last == gestureRecord && cursor == end && end > start
+                && type(last) == type && field(last, 1) == subtree) {
+            // Merge with the previous change of the gesture. The record is kept even if the
+            // value is back to the old one: the old value is only the one of the subtree root
+            // (or of the last change of the whole tree), and may not describe every node.
+            setField(last, 2, newValue);
+        } else {
+            append(type, subtree, newValue, oldValue, 0, reference);
+            if (inGesture)
+                gestureRecord = end - 1;
+        }
+    }
+
+    /**
+     * @param sampler   the fork that produced the colors; its seed must not change afterwards
+     * @param fixups    node and color of each tile changed after the recolor, in pairs
+     */
+    void recordRecolor(int subtree, ConstrainedColorSampler<?> sampler, long whiteSeed,
+                       int[] fixups) {
+        int numFixups = fixups.length / 2;
+        if (numFixups + 1 > capacity / 2) {
+            // Cheaper to store the colors than to evict half of the history
+            recordSnapshot();
+            return;
+        }
+        prepareAppend(numFixups + 1);
+        write(RECOLOR, subtree, (int) (whiteSeed >>> 32), (int) whiteSeed, numFixups, sampler);
+        for (int k = 0; k < numFixups; k++)
+            write(FIXUP, fixups[2 * k], fixups[2 * k + 1], k + 1, 0, null);
+    }
+
+    /**
+     * Records the current colors as a whole, after an edit that can't be replayed.
+     */
+    void recordSnapshot() {
+        append(SNAPSHOT, Artwork.ROOT, 0, 0, 0, captureState());
+    }
+
+    private void append(int type, int a, int b, int c, int d, Object reference) {
+        prepareAppend(1);
+        write(type, a, b, c, d, reference);
+    }
+
+    // Drops the records that could be redone, and the oldest ones if there's no room
+    private void prepareAppend(int numRecords) {
+        for (long seq = cursor; seq < end; seq++)
+            references[slot(seq)] = null;
+        end = cursor;
+        while (end - start + numRecords > capacity)
+            dropOldest();
+    }
+
+    private void write(int type, int a, int b, int c, int d, Object reference) {
+        int offset = RECORD_SIZE * slot(end);
+        records[offset] = type;
+        records[offset + 1] = a;
+        records[offset + 2] = b;
+        records[offset + 3] = c;
+        records[offset + 4] = d;
+        references[slot(end)] = reference;
+        end++;
+        cursor = end;
+    }
+
+    private void dropOldest() {
+        long next = start + length(start);
+        replay(start, next, base);
+        for (long seq = start; seq < next; seq++)
+            references[slot(seq)] = null;
+        start = next;
+    }
+
+    // --- Undo / redo
+
+    boolean undo() {
+        if (!canUndo())
+            return false;
+        long last = cursor - 1;
+        if (type(last) == FIXUP)
+            last -= field(last, 3);
+        cursor = last;
+
+        int node = field(last, 1);
+        switch (type(last)) {
+            case SET_HUE:
+                artwork.applyHue(node, Float.intBitsToFloat(field(last, 2)));
+                break;
+            case SET_DEPTH_LIMIT:
+                artwork.restoreDepthLimits(node, field(last, 3), (int[]) references[slot(last)]);
+                break;
+            case SET_SATURATION:
+                restoreState(last);
+                if (node == Artwork.ROOT)
+                    artwork.restoreSaturation(Float.intBitsToFloat(field(last, 3)));
+                break;
+            case SET_BRIGHTNESS:
+                restoreState(last);
+                if (node == Artwork.ROOT)
+                    artwork.restoreBrightness(Float.intBitsToFloat(field(last, 3)));
+                break;
+            default:
+                restoreState(last);
+        }
+        return true;
+    }
+
+    boolean redo() {
+        if (!canRedo())
+            return false;
+        long next = cursor;
+        cursor = next + length(next);
+
+        int node = field(next, 1);
+        switch (type(next)) {
+            case SET_HUE:
+                artwork.applyHue(node, Float.intBitsToFloat(field(next, 3)));
+                break;
+            case SET_DEPTH_LIMIT:
+                artwork.applyDepthLimit(node, field(next, 2));
+                break;
+            case SET_SATURATION:
+                artwork.applySaturation(node, Float.intBitsToFloat(field(next, 2)));
+                break;
+            case SET_BRIGHTNESS:
+                artwork.applyBrightness(node, Float.intBitsToFloat(field(next, 2)));
+                break;
+            default:
+                restoreState(cursor);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the colors of the artwork to the ones they had before the record until.
+     */
+    private void restoreState(long until) {
+        // Start from the last recolor of the whole tree or snapshot, which don't depend on the
+        // previous colors
+        long from = until;
+        while (from > start && !isAnchor(from - 1))
+            from--;
+        State state;
+        if (from > start) {
+            from--;
+            if (type(from) == FIXUP)
+                from -= field(from, 3);
+            state = new State(base.numNodes());
+        } else {
+            state = base.copy();
+        }
+        replay(from, until, state);
+        artwork.setState(state.hsb, state.locked);
+    }
+
+    private boolean isAnchor(long seq) {
+        if (type(seq) == FIXUP)
+            seq -= field(seq, 3);
+        int type = type(seq);
+        return type == SNAPSHOT || (type == RECOLOR && field(seq, 1) == Artwork.ROOT);
+    }
+
+    /**
+     * Applies the records [from, until) to a state.
+     */
+    private void replay(long from, long until, State state) {
+        float[] hsb = state.hsb;
+        boolean[] locked = state.locked;
+        for (long seq = from; seq < until; seq++) {
+            switch (type(seq)) {
+                case SET_HUE:
+                    hsb[3 * field(seq, 1)] = Float.intBitsToFloat(field(seq, 3));
+                    break;
+                case SET_SATURATION:
+                    setComponent(state, field(seq, 1), 1, Float.intBitsToFloat(field(seq, 2)));
+                    break;
+                case SET_BRIGHTNESS:
+                    setComponent(state, field(seq, 1), 2, Float.intBitsToFloat(field(seq, 2)));
+                    break;
+                case RECOLOR:
+                    ConstrainedColorSampler<?> sampler =
+                            (ConstrainedColorSampler<?>) references[slot(seq)];
+                    sampler.setSeed(sampler.getSeed());
+                    long whiteSeed = ((long) field(seq, 2) << 32) | (field(seq, 3) & 0xFFFFFFFFL);
+                    artwork.recolorState(field(seq, 1), sampler, whiteSeed, hsb, locked);
+                    break;
+                case FIXUP:
+                    ColorSpaces.colorToHsb(field(seq, 2), hsb, 3 * field(seq, 1));
+                    break;
+                case SNAPSHOT:
+                    State snapshot = (State) references[slot(seq)];
+                    System.arraycopy(snapshot.hsb, 0, hsb, 0, hsb.length);
+                    System.arraycopy(snapshot.locked, 0, locked, 0, locked.length);
+                    break;
+                default:
+                    // Depth limits don't change the colors
+            }
+        }
+    }
+
+    private void setComponent(State state, int subtree, int component, float value) {
+        for (int i : artwork.subtreeNodes(subtree)) {
+            if (!state.locked[i])
+                state.hsb[3 * i + component] = value;
+        }
+    }
+
+    private State captureState() {
+        State state = new State(artwork.numIndexedNodes());
+        artwork.captureState(state.hsb, state.locked);
+        return state;
+    }
+
+    // --- Records
+
+    private int slot(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    private int type(long seq) {
+        return records[RECORD_SIZE * slot(seq)];
+    }
+
+    private int field(long seq, int field) {
+        return records[RECORD_SIZE * slot(seq) + field];
+    }
+
+    private void setField(long seq, int field, int value) {
+        records[RECORD_SIZE * slot(seq) + field] = value;
+    }
+
+    // Number of records of the edit starting at seq
+    private int length(long seq) {
+        return (type(seq) == RECOLOR) ? 1 + field(seq, 4) : 1;
+    }
+
+    /**
+     * Colors (3 HSB components per node) and locked white nodes.
+     */
+    private static class State {
+        final float[] hsb;
+        final boolean[] locked;
+
+        State(int numNodes) {
+            this.hsb = new float[3 * numNodes];
+            this.locked = new boolean[numNodes];
+        }
+
+        int numNodes() {
+            return locked.length;
+        }
+
+        long sizeInBytes() {
+            return 4L * hsb.length + locked.length;
+        }
+
+        State copy() {
+            State copy = new State(numNodes());
+            System.arraycopy(hsb, 0, copy.hsb, 0, hsb.length);
+            System.arraycopy(locked, 0, copy.locked, 0, locked.length);
+            return copy;
+        }
+    }
+}
@@ -2,101 +2,274 @@ package com.janluke.modernartui;
 
 import android.content.Context;
 import android.graphics.Color;
-import android.widget.LinearLayout;
 
 import com.janluke.modernartui.colors.ColorSampler;
+import com.janluke.modernartui.colors.ConstrainedColorSampler;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.ArtworkScorer;
+import com.janluke.modernartui.model.BestOfGenerator;
+import com.janluke.modernartui.model.TileTree;
+import com.janluke.modernartui.model.TileTreeGenerator;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 
+/**
+ * Generates artworks from a seed. The generated models are kept in a small cache keyed by the
+ * seed, in unit coordinates, so that asking again for a cached seed gives back the same artwork
+ * without generating it again, whatever the size of the frame (its views lay the tiles out by
+ * weight) and even if the settings changed since.
+ *
+ * Once a seed is out of the cache (evicted, cleared, or the process was restarted), generating
+ * it again may give another artwork: the settings may have changed, and the best-of-K search is
+ * cut short by a time budget. Callers that need the same artwork back must keep its
+ * description (see ArtworkCodec).
+ */
 public class ArtworkGenerator {
 
-    public static final int DEFAULT_MAX_DEPTH = 5;
+    public static final int DEFAULT_MAX_DEPTH = TileTreeGenerator.DEFAULT_MAX_DEPTH;
+
+    static final int MAX_CACHED_MODELS = 8;
+
+    private static final Map<Long, GeneratedModel> modelCache =
+            new LinkedHashMap<Long, GeneratedModel>(MAX_CACHED_MODELS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, GeneratedModel> eldest) {
+                    return size() > MAX_CACHED_MODELS;
+                }
+            };
 
     private ColorSampler colorSampler;
-    private int maxDepth = DEFAULT_MAX_DEPTH;
-    private int minNumChildren = 2;
-    private int maxNumChildren = 5;
-    private int minLayoutWeight = 10;
-    private int maxLayoutWeight = 20;
-    private float leafThresholdInDp = 60f;
+    private TileTreeGenerator treeGenerator = new TileTreeGenerator()
+            .setMaxDepth(DEFAULT_MAX_DEPTH)
+            .setLeafThreshold(60f);    // in dp
 
     private float strokeWidthInDp = 2;
 
     private boolean forceWhiteNodes = true;
 
-    private Random rand = new Random();
+    private ArtworkNodePool nodePool;
+
+    // Best-of-K generation, used when more than one candidate is requested
+    private BestOfGenerator bestOfGenerator;
+    private int scoringDepthLimit = ArtworkScorer.UNBOUNDED;
+
+    private final Random seeds = new Random();
 
 
     public Artwork generateArtwork(Context context, int width, int height) {
-        float widthInDp = Util.pxToDp(context, width);
-        float heightInDp = Util.pxToDp(context, height);
-        ArtworkNode root = generateArtworkTree(context, 0, widthInDp, heightInDp);
-        Artwork artwork = new Artwork(root, forceWhiteNodes);
-        artwork.setStrokeWidth(strokeWidthInDp);
-        if (colorSampler != null)
-            artwork.recolor(colorSampler);
+        return generateArtwork(context, nextSeed(), width, height);
+    }
 
-        return artwork;
+    /**
+     * Returns the artwork of the given seed for a frame of the given size in pixels, generating
+     * it with the current settings only if it's not in the cache.
+     */
+    public Artwork generateArtwork(Context context, long seed, int width, int height) {
+        GeneratedModel generated;
+        synchronized (modelCache) {
+            generated = modelCache.get(seed);
+        }
+        if (generated == null) {
+            // The size in pixels matters only to the generation, which works in dp
+            float density = context.getResources().getDisplayMetrics().density;
+            ArtworkModel model = generateModel(seed, width / density, height / density);
+            model.getTree().normalize();
+            generated = new GeneratedModel(model, fixedComponent(ConstrainedColorSampler.S),
+                    fixedComponent(ConstrainedColorSampler.B));
+            synchronized (modelCache) {
+                modelCache.put(seed, generated);
+            }
+        }
+        return buildArtwork(context, generated.model, generated.saturation,
+                generated.brightness);
     }
 
-    private ArtworkNode generateArtworkTree(Context context, int depthLevel, float width, float height) {
-        ArtworkNode node = new ArtworkNode(context, Color.WHITE);
+    /**
+     * Draws the seed of a new artwork.
+     */
+    public long nextSeed() {
+        return seeds.nextLong();
+    }
 
-        // If we reached the last depth level or if the tile is too small, make this node a leaf
-        float longestSide = Math.max(width, height);
-        if (depthLevel == maxDepth || longestSide < leafThresholdInDp) {
-            node.showChildren(false);
-            return node;
+    /**
+     * Generates the shape and the colors of an artwork from the seed and the current settings.
+     * With more than one candidate, the best one found within the time budget is picked, with
+     * the colors it was scored with, so the result depends on the timing too.
+     */
+    private ArtworkModel generateModel(long seed, float widthInDp, float heightInDp) {
+        Random random = new Random(seed);
+        ColorSampler sampler = colorSampler;
+        if (colorSampler instanceof ConstrainedColorSampler)
+            sampler = ((ConstrainedColorSampler<?>) colorSampler).fork().setSeed(seed);
+        if (bestOfGenerator != null) {
+            return bestOfGenerator.setRandom(random)
+                    .setColorSampler(sampler)
+                    .generate(widthInDp, heightInDp);
         }
 
-        int orientation = (depthLevel == 0)
-            ? randOrientation()
-            : (width >= height)
-                ? LinearLayout.HORIZONTAL
-                : LinearLayout.VERTICAL;
-        node.childrenView.setOrientation(orientation);
-
-        float depthProgress = depthLevel / (float) maxDepth;
-        int maxExtraChildren = Math.round((1F - depthProgress) * (maxNumChildren - minNumChildren));
-        int numChildren = minNumChildren + rand.nextInt(maxExtraChildren + 1);
-
-        // Generate layout weights
-        int deltaWeight = maxLayoutWeight - minLayoutWeight;
-        int[] weights = new int[numChildren];
-        int total = 0;
-        for (int i = 0; i < numChildren; i++) {
-            weights[i] = minLayoutWeight + rand.nextInt(deltaWeight);
-            total += weights[i];
+        TileTree tree = treeGenerator.copy(random).generate(widthInDp, heightInDp);
+        ArtworkModel model = new ArtworkModel(tree, forceWhiteNodes, random);
+        if (sampler != null)
+            model.recolor(sampler);
+        return model;
+    }
+
+    public static void clearModelCache() {
+        synchronized (modelCache) {
+            modelCache.clear();
         }
+    }
 
-        // Generate children subtrees
-        float childWidth = width;
-        float childHeight = height;
-        for (int i = 0; i < numChildren; i++) {
+    /**
+     * Creates the views of an artwork generated as a model (e.g. a mosaic thumbnail), keeping
+     * its colors.
+     */
+    public Artwork buildArtwork(Context context, ArtworkModel model) {
+        return buildArtwork(context, model, fixedComponent(ConstrainedColorSampler.S),
+                fixedComponent(ConstrainedColorSampler.B));
+    }
 
-            if (orientation == LinearLayout.HORIZONTAL)
-                childWidth = Math.round(width * (weights[i] / (float) total));
+    /**
+     * @param saturation saturation the colors were sampled with, or NaN if not a single one
+     * @param brightness brightness the colors were sampled with, or NaN if not a single one
+     */
+    private Artwork buildArtwork(Context context, ArtworkModel model, float saturation,
+                                 float brightness) {
+        ArtworkNode[] nodes = buildArtworkTree(context, nodePool, model.getTree());
+        Artwork artwork = new Artwork(nodes[0], forceWhiteNodes);
+        artwork.setNodePool(nodePool);
+        artwork.setStrokeWidth(strokeWidthInDp);
+        for (int i = 0; i < nodes.length; i++) {
+            if (model.isLockedWhite(i))
+                artwork.lockWhite(nodes[i]);
             else
-                childHeight = Math.round(height * (weights[i] / (float) total));
-
-            ArtworkNode child = generateArtworkTree(context, depthLevel + 1, childWidth, childHeight);
-            node.addChild(child, weights[i]);
+                nodes[i].setColor(model.getColor(i));
         }
+        // So that the first change of the whole tree can be undone
+        artwork.restoreSaturation(saturation);
+        artwork.restoreBrightness(brightness);
+        return artwork;
+    }
 
-        return node;
+    // Value of a color component fixed by the sampler, or NaN
+    private float fixedComponent(int component) {
+        if (!(colorSampler instanceof ConstrainedColorSampler))
+            return Float.NaN;
+        ConstrainedColorSampler<?> sampler = (ConstrainedColorSampler<?>) colorSampler;
+        return sampler.hasFixed(component) ? sampler.getMin(component) : Float.NaN;
     }
 
-    private int randOrientation() {
-        return (rand.nextBoolean()) ? LinearLayout.VERTICAL : LinearLayout.HORIZONTAL;
+    /**
+     * Creates the ArtworkNode (and so the views) of each node of the tree, reusing the nodes of
+     * the pool when one is given.
+     * @return the nodes, indexed like the nodes of the tree (the root is the first one)
+     */
+    static ArtworkNode[] buildArtworkTree(Context context, ArtworkNodePool pool, TileTree tree) {
+        // Parents always come before their children, so a single pass is enough
+        ArtworkNode[] nodes = new ArtworkNode[tree.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            ArtworkNode node = (pool != null)
+                    ? pool.obtain()
+                    : new ArtworkNode(context, Color.WHITE, 0);
+            node.childrenView.setOrientation(tree.orientation(i));
+            if (tree.isLeaf(i))
+                node.showChildren(false);
+            if (tree.parent(i) != TileTree.NO_PARENT)
+                nodes[tree.parent(i)].addChild(node, tree.weight(i));
+            nodes[i] = node;
+        }
+        return nodes;
     }
 
     public void setColorSampler(ColorSampler colorSampler) {
         this.colorSampler = colorSampler;
+        if (bestOfGenerator != null)
+            bestOfGenerator.setColorSampler(colorSampler);
     }
 
     public void setStrokeWidthInDp(int strokeWidthInDp) {
         this.strokeWidthInDp = strokeWidthInDp;
     }
 
+    /**
+     * Sets a pool from which the nodes of new artworks are taken. Its context must be the one
+     * passed to generateArtwork.
+     */
+    public void setNodePool(ArtworkNodePool nodePool) {
+        this.nodePool = nodePool;
+    }
+
+    /**
+     * Bounds the number of nodes (tiles) of the generated artworks: when the budget is reached,
+     * the largest tiles are the ones that get split. Use TileTreeGenerator.UNBOUNDED to bound
+     * the tree only by the maximum depth and the tile size.
+     */
+    public void setMaxNodes(int maxNodes) {
+        treeGenerator.setMaxNodes(maxNodes);
+    }
+
+    /**
+     * Makes each generation pick the best of numCandidates artworks, generated concurrently on
+     * the common ForkJoinPool and scored by ArtworkScorer. Candidates are colored with forks of
+     * the color sampler, and the colors of the winner are kept.
+     * Use 1 to go back to generating a single artwork.
+     * @param timeBudgetMillis time after which the best candidate found so far is taken
+     */
+    public void setNumCandidates(int numCandidates, long timeBudgetMillis) {
+        Util.checkArg(numCandidates > 0, "illegal numCandidates");
+        if (numCandidates == 1) {
+            bestOfGenerator = null;
+            return;
+        }
+        bestOfGenerator = new BestOfGenerator(treeGenerator, ForkJoinPool.commonPool())
+                .setNumCandidates(numCandidates)
+                .setForceWhiteNodes(forceWhiteNodes)
+                .setScoringDepthLimit(scoringDepthLimit)
+                .setColorSampler(colorSampler)
+                .setTimeBudgetNanos(timeBudgetMillis * 1_000_000L);
+    }
+
+    /**
+     * Makes the candidates be compared by the tiles shown with the given depth limit.
+     */
+    public void setScoringDepthLimit(int depthLimit) {
+        this.scoringDepthLimit = depthLimit;
+        if (bestOfGenerator != null)
+            bestOfGenerator.setScoringDepthLimit(depthLimit);
+    }
+
+    public boolean isForcingWhiteNodes() {
+        return forceWhiteNodes;
+    }
+
+    /**
+     * Returns the generator of the shapes of the artworks, e.g. to copy its settings.
+     */
+    public TileTreeGenerator getTreeGenerator() {
+        return treeGenerator;
+    }
+
+    /**
+     * Bounds the time spent generating the shape of an artwork.
+     */
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        treeGenerator.setTimeBudgetNanos(timeBudgetMillis * 1_000_000L);
+    }
+
+    // A generated model, with the saturation and brightness its colors were sampled with
+    static class GeneratedModel {
+        final ArtworkModel model;
+        final float saturation;
+        final float brightness;
+
+        GeneratedModel(ArtworkModel model, float saturation, float brightness) {
+            this.model = model;
+            this.saturation = saturation;
+            this.brightness = brightness;
+        }
+    }
 }
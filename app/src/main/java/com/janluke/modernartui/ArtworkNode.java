@@ -2,11 +2,16 @@ package com.janluke.modernartui;
 
 import android.content.Context;
 import android.graphics.Color;
+import android.graphics.drawable.Drawable;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.ViewSwitcher;
 
+import com.janluke.modernartui.fill.FillStyle;
+import com.janluke.modernartui.fill.TileDrawable;
+import com.janluke.modernartui.fill.TileShaderCache;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -23,6 +28,9 @@ public class ArtworkNode {
     // For shortness and readability
     private static final int MATCH_PARENT = ViewGroup.LayoutParams.MATCH_PARENT;
 
+    // Views allocated by each node: the switcher, the children container and the leaf view
+    public static final int VIEWS_PER_NODE = 3;
+
     private List<ArtworkNode> children = new ArrayList<>();
 
     ViewSwitcher viewSwitcher;
@@ -31,8 +39,12 @@ public class ArtworkNode {
 
     private float[] viewColorHSB = new float[3];
     private int marginBetweenChildren;
+    private int weight = 1;     // layout weight inside the parent node
+    private FillStyle fillStyle = FillStyle.FLAT;
+    private TileDrawable tileDrawable;      // background of the leaf view, unless FLAT
 
     boolean isShowingChildren = true;
+    int index = -1;             // position in the breadth-first order of its Artwork
 
     private OnClickListener listener;
 
@@ -54,8 +66,36 @@ public class ArtworkNode {
         this(context, Color.WHITE, marginBetweenChildren);
     }
 
+    /**
+     * Brings the node back to the state of a newly created one (a white node without children,
+     * detached from any parent), keeping its views so that it can be reused.
+     */
+    void reset() {
+        children.clear();
+        childrenView.removeAllViews();
+        childrenView.setOrientation(LinearLayout.HORIZONTAL);
+
+        ViewGroup parentView = (ViewGroup) viewSwitcher.getParent();
+        if (parentView != null)
+            parentView.removeView(viewSwitcher);
+        showChildren(true);
+
+        weight = 1;
+        index = -1;
+        marginBetweenChildren = 0;
+        listener = null;
+        leafView.setOnClickListener(null);
+        leafView.setClickable(false);
+        leafView.setOnLongClickListener(null);
+        leafView.setLongClickable(false);
+        viewSwitcher.setForeground(null);
+        fillStyle = FillStyle.FLAT;
+        setColor(Color.WHITE);
+    }
+
     public void addChild(ArtworkNode child, int weight) {
         children.add(child);
+        child.weight = weight;
         View childView = child.getView();
 
         // Set layout parameters for the child view
@@ -77,10 +117,26 @@ public class ArtworkNode {
         childrenView.addView(childView);
     }
 
+    /**
+     * Detaches all the children, which can't be used anymore.
+     */
+    void removeChildren() {
+        children.clear();
+        childrenView.removeAllViews();
+    }
+
     public Iterable<ArtworkNode> children() {
         return children;
     }
 
+    public int numChildren() {
+        return children.size();
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
     public boolean isShowingChildren() {
         return isShowingChildren;
     }
@@ -106,9 +162,36 @@ public class ArtworkNode {
         return viewColorHSB[0];
     }
 
+    public float getSaturation() {
+        return viewColorHSB[1];
+    }
+
+    public float getBrightness() {
+        return viewColorHSB[2];
+    }
+
     public void setColor(int color) {
         Color.colorToHSV(color, viewColorHSB);
-        leafView.setBackgroundColor(color);
+        showColor(color);
+    }
+
+    /**
+     * Changes only the color shown by the tile, not the color of the node (e.g. while animating
+     * towards it).
+     */
+    void setDisplayedColor(int color) {
+        showColor(color);
+    }
+
+    /**
+     * Like setDisplayedColor, for the intermediate colors of a transition, which styled tiles
+     * draw without taking a shader for each of them.
+     */
+    void setTransitionColor(int color) {
+        if (fillStyle == FillStyle.FLAT)
+            leafView.setBackgroundColor(color);
+        else
+            tileDrawable.setTransitionColor(color);
     }
 
     public void setColorHSB(float[] hsb) {
@@ -119,7 +202,34 @@ public class ArtworkNode {
         viewColorHSB[0] = h;
         viewColorHSB[1] = s;
         viewColorHSB[2] = b;
-        leafView.setBackgroundColor(Color.HSVToColor(viewColorHSB));
+        showColor(Color.HSVToColor(viewColorHSB));
+    }
+
+    public FillStyle getFillStyle() {
+        return fillStyle;
+    }
+
+    /**
+     * @param cache where the shaders of the style are taken from, shared by the tiles
+     */
+    public void setFillStyle(FillStyle style, TileShaderCache cache) {
+        fillStyle = style;
+        if (style == FillStyle.FLAT) {
+            leafView.setBackgroundColor(getColor());
+            return;
+        }
+        if (tileDrawable == null || tileDrawable.getCache() != cache)
+            tileDrawable = new TileDrawable(cache);
+        tileDrawable.setStyle(style);
+        tileDrawable.setColor(getColor());
+        leafView.setBackground(tileDrawable);
+    }
+
+    private void showColor(int color) {
+        if (fillStyle == FillStyle.FLAT)
+            leafView.setBackgroundColor(color);
+        else
+            tileDrawable.setColor(color);
     }
 
     public View getView() {
@@ -140,17 +250,17 @@ public class ArtworkNode {
 
     public void setHue(float hue) {
         viewColorHSB[0] = hue;
-        leafView.setBackgroundColor(Color.HSVToColor(viewColorHSB));
+        showColor(Color.HSVToColor(viewColorHSB));
     }
 
     public void setSaturation(float saturation) {
         viewColorHSB[1] = saturation;
-        leafView.setBackgroundColor(Color.HSVToColor(viewColorHSB));
+        showColor(Color.HSVToColor(viewColorHSB));
     }
 
     public void setBrightness(float brightness) {
         viewColorHSB[2] = brightness;
-        leafView.setBackgroundColor(Color.HSVToColor(viewColorHSB));
+        showColor(Color.HSVToColor(viewColorHSB));
     }
 
     public void setMargins(int left, int top, int right, int bottom) {
@@ -195,6 +305,25 @@ public class ArtworkNode {
         leafView.setOnClickListener(view -> listener.onClick(this));
     }
 
+    public interface OnLongClickListener {
+        void onLongClick(ArtworkNode node);
+    }
+
+    public void setOnLongClickListener(OnLongClickListener listener) {
+        leafView.setOnLongClickListener(view -> {
+            listener.onLongClick(this);
+            return true;
+        });
+    }
+
+    /**
+     * Draws the drawable over the node and its children (e.g. to highlight it), or nothing if
+     * null.
+     */
+    public void setForeground(Drawable foreground) {
+        viewSwitcher.setForeground(foreground);
+    }
+
 
     interface ArtworkNodeConsumer {
         void consume(ArtworkNode node);
@@ -0,0 +1,98 @@
+package com.janluke.modernartui;
+
+import android.content.Context;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Pool of ArtworkNode objects (each one holding three views), used to avoid re-allocating
+ * thousands of views every time a new artwork is generated.
+ *
+ * The pool keeps at most as many nodes as the largest artwork released so far (the high-water
+ * mark), capped by maxSize, so in steady state a regeneration allocates almost nothing while
+ * the memory retained by the pool stays bounded.
+ *
+ * Not thread-safe: like the views it holds, it must be used only from the UI thread.
+ */
+public class ArtworkNodePool {
+
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    private final Context context;
+    private final int maxSize;
+    private final ArrayDeque<ArtworkNode> freeNodes = new ArrayDeque<>();
+    private int highWaterMark;
+
+    // Stats
+    private int numCreated;
+    private int numReused;
+
+    public ArtworkNodePool(Context context, int maxSize) {
+        this.context = context;
+        this.maxSize = maxSize;
+    }
+
+    public ArtworkNodePool(Context context) {
+        this(context, DEFAULT_MAX_SIZE);
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * Returns a white node without children, either reused or newly created.
+     */
+    public ArtworkNode obtain() {
+        ArtworkNode node = freeNodes.pollFirst();
+        if (node != null) {
+            numReused++;
+            return node;
+        }
+        numCreated++;
+        return new ArtworkNode(context, 0);
+    }
+
+    /**
+     * Resets all the nodes of a tree and gives them back to the pool. The tree must not be used
+     * anymore after this call.
+     */
+    public void releaseTree(ArtworkNode root) {
+        // Collect the nodes first: resetting a node detaches its children
+        List<ArtworkNode> nodes = new ArrayList<>();
+        root.traverseBreadthFirst(nodes::add);
+        highWaterMark = Math.min(maxSize, Math.max(highWaterMark, nodes.size()));
+
+        for (ArtworkNode node : nodes) {
+            node.reset();
+            if (freeNodes.size() < highWaterMark)
+                freeNodes.addFirst(node);
+        }
+    }
+
+    public int size() {
+        return freeNodes.size();
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public int getNumCreated() {
+        return numCreated;
+    }
+
+    public int getNumReused() {
+        return numReused;
+    }
+
+    /**
+     * Drops all the pooled nodes.
+     */
+    public void clear() {
+        freeNodes.clear();
+    }
+}
@@ -0,0 +1,137 @@
+package com.janluke.modernartui;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ValueAnimator;
+import android.view.animation.AccelerateDecelerateInterpolator;
+
+import com.janluke.modernartui.perf.PerfMonitor;
+import com.janluke.modernartui.perf.PerfMonitor.Operation;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Animates the tiles of an artwork from their current colors to the ones set by a change (e.g.
+ * a recolor), instead of switching them instantly.
+ *
+ * The start and end colors of the animated tiles are captured once, in packed int arrays, and a
+ * single ValueAnimator drives the whole transition: each frame is one interpolation loop over
+ * the arrays, which only sets the background of the tile views (their logical color is already
+ * the final one). Tiles hidden by the depth limit are not animated.
+ *
+ * Starting a transition, or calling end, jumps the running one to its end colors first.
+ * Must be used from the UI thread.
+ */
+public class ColorTransition {
+
+    public static final long DEFAULT_DURATION_MILLIS = 400;
+
+    private final ValueAnimator animator = ValueAnimator.ofInt(0, 256);
+    private final PerfMonitor perfMonitor;
+
+    private ArtworkNode[] tiles = new ArtworkNode[0];
+    private int[] startColors = new int[0];
+    private int[] endColors = new int[0];
+    private int numTiles;
+
+    public ColorTransition(PerfMonitor perfMonitor) {
+        this.perfMonitor = perfMonitor;
+        animator.setDuration(DEFAULT_DURATION_MILLIS);
+        animator.setInterpolator(new AccelerateDecelerateInterpolator());
+        animator.addUpdateListener(animation -> onFrame((int) animation.getAnimatedValue()));
+        animator.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                finish();
+            }
+        });
+    }
+
+    public void setDuration(long durationMillis) {
+        animator.setDuration(durationMillis);
+    }
+
+    /**
+     * Applies a change to the colors of the visible tiles of the artwork and animates it.
+     */
+    public void run(Artwork artwork, Runnable change) {
+        run(artwork.getVisibleTiles(), change);
+    }
+
+    /**
+     * Applies a change to the colors of the given tiles and animates it.
+     */
+    public void run(List<ArtworkNode> changedTiles, Runnable change) {
+        end();
+        numTiles = changedTiles.size();
+        if (tiles.length < numTiles) {
+            int capacity = Math.max(numTiles, 2 * tiles.length);
+            tiles = new ArtworkNode[capacity];
+            startColors = new int[capacity];
+            endColors = new int[capacity];
+        }
+        for (int i = 0; i < numTiles; i++) {
+            ArtworkNode tile = changedTiles.get(i);
+            tiles[i] = tile;
+            startColors[i] = tile.getColor();
+        }
+
+        change.run();
+
+        if (animator.getDuration() == 0) {
+            clearTiles();
+            return;
+        }
+        for (int i = 0; i < numTiles; i++) {
+            endColors[i] = tiles[i].getColor();
+            tiles[i].setTransitionColor(startColors[i]);
+        }
+        animator.start();
+    }
+
+    /**
+     * Jumps the running transition, if any, to its end colors.
+     */
+    public void end() {
+        if (animator.isRunning())
+            animator.end();
+    }
+
+    public boolean isRunning() {
+        return animator.isRunning();
+    }
+
+    private void onFrame(int fraction) {
+        long start = perfMonitor.begin(Operation.TRANSITION_FRAME);
+        ArtworkNode[] tiles = this.tiles;
+        int[] startColors = this.startColors;
+        int[] endColors = this.endColors;
+        for (int i = 0; i < numTiles; i++)
+            tiles[i].setTransitionColor(interpolate(startColors[i], endColors[i], fraction));
+        perfMonitor.end(Operation.TRANSITION_FRAME, start);
+    }
+
+    private void finish() {
+        for (int i = 0; i < numTiles; i++)
+            tiles[i].setDisplayedColor(endColors[i]);
+        clearTiles();
+    }
+
+    private void clearTiles() {
+        Arrays.fill(tiles, 0, numTiles, null);
+        numTiles = 0;
+    }
+
+    /**
+     * Interpolates two opaque colors, two channels at a time.
+     * @param fraction from 0 (from) to 256 (to)
+     */
+    static int interpolate(int from, int to, int fraction) {
+        int inverse = 256 - fraction;
+        int redBlue = (((from & 0xFF00FF) * inverse + (to & 0xFF00FF) * fraction) >>> 8) & 0xFF00FF;
+        int green = (((from & 0x00FF00) * inverse + (to & 0x00FF00) * fraction) >>> 8) & 0x00FF00;
+        return 0xFF000000 | redBlue | green;
+    }
+}
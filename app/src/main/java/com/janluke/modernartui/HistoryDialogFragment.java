@@ -0,0 +1,141 @@
+package com.janluke.modernartui;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.modernartui.R;
+import com.janluke.modernartui.history.ArtworkHistory;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Shows the artwork history as a horizontal strip of thumbnails. Tapping a thumbnail restores
+ * the corresponding artwork.
+ */
+public class HistoryDialogFragment extends DialogFragment {
+
+    private static final int MATCH_PARENT = ViewGroup.LayoutParams.MATCH_PARENT;
+
+    public HistoryDialogFragment() {
+        // Required empty public constructor
+    }
+
+    public static HistoryDialogFragment newInstance() {
+        return new HistoryDialogFragment();
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        ShowArtworkActivity activity = (ShowArtworkActivity) getActivity();
+        LayoutInflater inflater = activity.getLayoutInflater();
+        View view = inflater.inflate(R.layout.fragment_history_dialog, null);
+
+        RecyclerView strip = view.findViewById(R.id.history_strip);
+        TextView emptyText = view.findViewById(R.id.history_empty_text);
+        strip.setLayoutManager(
+                new LinearLayoutManager(activity, LinearLayoutManager.HORIZONTAL, false));
+        ThumbnailAdapter adapter = new ThumbnailAdapter(activity);
+        strip.setAdapter(adapter);
+        activity.runOnHistoryThread(history -> {
+            // Positions must not shift while shown, whatever the history thread does next
+            List<ArtworkHistory.Entry> entries = history.snapshot();
+            strip.post(() -> {
+                adapter.setEntries(entries);
+                emptyText.setVisibility(entries.isEmpty() ? View.VISIBLE : View.GONE);
+            });
+        });
+
+        return new AlertDialog.Builder(activity)
+                .setView(view)
+                .setTitle(R.string.history_dialog_title)
+                .setNegativeButton(R.string.close_button_text, (dialogInterface, i) ->
+                        dialogInterface.cancel())
+                .create();
+    }
+
+
+    private class ThumbnailAdapter extends RecyclerView.Adapter<ThumbnailHolder> {
+
+        private final ShowArtworkActivity activity;
+        private List<ArtworkHistory.Entry> entries = Collections.emptyList();
+
+        ThumbnailAdapter(ShowArtworkActivity activity) {
+            this.activity = activity;
+        }
+
+        /**
+         * @param entries immutable entries to show, the most recent first
+         */
+        void setEntries(List<ArtworkHistory.Entry> entries) {
+            this.entries = entries;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public ThumbnailHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            ImageView imageView = new ImageView(parent.getContext());
+            int padding = Util.dpToPx(parent.getContext(), 4);
+            imageView.setPadding(padding, padding, padding, padding);
+            imageView.setAdjustViewBounds(true);
+            imageView.setLayoutParams(new RecyclerView.LayoutParams(
+                    ViewGroup.LayoutParams.WRAP_CONTENT, MATCH_PARENT));
+            return new ThumbnailHolder(imageView);
+        }
+
+        @Override
+        public void onBindViewHolder(ThumbnailHolder holder, int position) {
+            ArtworkHistory.Entry entry = entries.get(position);
+            holder.entry = entry;
+            holder.imageView.setImageBitmap(null);
+            holder.imageView.setOnClickListener(view -> {
+                activity.restoreFromHistory(entry);
+                dismiss();
+            });
+
+            Bitmap cached = activity.getThumbnailCache().get(entry.id);
+            if (cached != null) {
+                holder.imageView.setImageBitmap(cached);
+                return;
+            }
+            activity.runOnHistoryThread(history -> {
+                Bitmap thumbnail = history.readThumbnail(entry);
+                if (thumbnail == null)
+                    return;
+                activity.getThumbnailCache().put(entry.id, thumbnail);
+                holder.imageView.post(() -> {
+                    // The holder may have been rebound to another entry in the meantime
+                    if (holder.entry == entry)
+                        holder.imageView.setImageBitmap(thumbnail);
+                });
+            });
+        }
+
+        @Override
+        public int getItemCount() {
+            return entries.size();
+        }
+    }
+
+
+    private static class ThumbnailHolder extends RecyclerView.ViewHolder {
+        final ImageView imageView;
+        ArtworkHistory.Entry entry;
+
+        ThumbnailHolder(ImageView imageView) {
+            super(imageView);
+            this.imageView = imageView;
+        }
+    }
+}
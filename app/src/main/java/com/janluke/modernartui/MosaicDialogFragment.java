@@ -0,0 +1,87 @@
+package com.janluke.modernartui;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.widget.ScrollView;
+
+import com.example.android.modernartui.R;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.mosaic.MosaicRenderer;
+import com.janluke.modernartui.mosaic.MosaicView;
+
+
+/**
+ * Shows a grid of newly generated artworks to pick from. The grid is a single atlas bitmap,
+ * filled in as the artworks are generated; tapping one shows it in full.
+ */
+public class MosaicDialogFragment extends DialogFragment {
+
+    static final int PADDING_IN_DP = 10;
+
+    private MosaicRenderer renderer;
+    private boolean released;
+
+    public MosaicDialogFragment() {
+        // Required empty public constructor
+    }
+
+    public static MosaicDialogFragment newInstance() {
+        return new MosaicDialogFragment();
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        ShowArtworkActivity activity = (ShowArtworkActivity) getActivity();
+        MosaicView mosaicView = new MosaicView(activity);
+        // The thumbnails take the aspect ratio of the artwork frame
+        activity.runWhenArtworkFrameLaidOut(() -> {
+            if (released)
+                return;
+            renderer = activity.renderMosaic(slot -> mosaicView.invalidate());
+            mosaicView.setRenderer(renderer);
+        });
+        mosaicView.setOnSlotClickListener(slot -> {
+            ArtworkModel model = renderer.getModel(slot);
+            // Not generated yet
+            if (model == null)
+                return;
+            activity.showMosaicArtwork(model);
+            dismiss();
+        });
+
+        ScrollView scrollView = new ScrollView(activity);
+        int padding = Util.dpToPx(activity, PADDING_IN_DP);
+        scrollView.setPadding(padding, padding, padding, padding);
+        scrollView.addView(mosaicView);
+
+        return new AlertDialog.Builder(activity)
+                .setView(scrollView)
+                .setTitle(R.string.mosaic_dialog_title)
+                .setNegativeButton(R.string.close_button_text, (dialogInterface, i) ->
+                        dialogInterface.cancel())
+                .create();
+    }
+
+    @Override
+    public void onDismiss(DialogInterface dialog) {
+        super.onDismiss(dialog);
+        releaseRenderer();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        releaseRenderer();
+    }
+
+    private void releaseRenderer() {
+        released = true;
+        if (renderer != null) {
+            renderer.release();
+            renderer = null;
+        }
+    }
+}
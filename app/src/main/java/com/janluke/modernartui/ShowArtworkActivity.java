@@ -1,10 +1,13 @@
 package com.janluke.modernartui;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.GradientDrawable;
 import android.media.MediaScannerConnection;
 import android.os.Bundle;
 import android.os.Environment;
@@ -22,15 +25,39 @@ import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.modernartui.BuildConfig;
 import com.example.android.modernartui.R;
+import com.janluke.modernartui.colors.ColorSampler;
 import com.janluke.modernartui.colors.ConstrainedColorSampler;
-import com.janluke.modernartui.colors.HueOffsetColorSampler;
-
+import com.janluke.modernartui.colors.PaletteColorSampler;
+import com.janluke.modernartui.colors.SpreadPaletteColorSampler;
+import com.janluke.modernartui.export.ArtworkGifExporter;
+import com.janluke.modernartui.fill.FillStyle;
+import com.janluke.modernartui.fill.TileShaderCache;
+import com.janluke.modernartui.history.ArtworkHistory;
+import com.janluke.modernartui.history.ThumbnailCache;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileRasterizer;
+import com.janluke.modernartui.mosaic.MosaicRenderer;
+import com.janluke.modernartui.perf.PerfMonitor;
+import com.janluke.modernartui.perf.PerfMonitor.Counter;
+import com.janluke.modernartui.perf.PerfMonitor.Operation;
+
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class ShowArtworkActivity extends AppCompatActivity {
@@ -43,16 +70,54 @@ public class ShowArtworkActivity extends AppCompatActivity {
     static final float MIN_BRIGHTNESS = 0.8f;
     static final float MAX_BRIGHTNESS = 1f;
     static final float HUE_OFFSET_ON_TAP = .13f;
+    // Minimum CIELAB distance between the colors of adjacent tiles after a recolor
+    static final float MIN_NEIGHBOR_COLOR_DISTANCE = 20f;
+    static final long COLOR_TRANSITION_MILLIS = 400;
+    static final int SELECTION_STROKE_WIDTH_IN_DP = 3;
 
     static final int DEFAULT_DEPTH_LIMIT = 2;
     static final int MIN_DEPTH_LIMIT = 2;
 
     static final int DEFAULT_GRID_SIZE_IN_DP = 10;
 
+    // Upper bounds on the number of tiles of generated artworks
+    static final int MAX_NODES = 1500;
+    static final int LOW_RAM_MAX_NODES = 500;
+    // Best-of-K generation: candidates generated concurrently for each new artwork
+    static final int NUM_CANDIDATES = 16;
+    static final int LOW_RAM_NUM_CANDIDATES = 4;
+    static final long CANDIDATES_TIME_BUDGET_MILLIS = 60;
+
     private static final int PERMISSION_REQUEST_WRITE_EXTERNAL_STORAGE = 0;
     private static final Bitmap.CompressFormat IMAGE_FILE_FORMAT = Bitmap.CompressFormat.PNG;
+    static final String IMAGE_MIME_TYPE = "image/png";
+
+    // Animated GIF export
+    static final int GIF_NUM_FRAMES = 12;
+    static final int GIF_RECOLOR_FRAME_DELAY_MILLIS = 700;
+    static final int GIF_HUE_FRAME_DELAY_MILLIS = 150;
+    static final int GIF_MAX_SIZE_IN_PX = 480;
+    static final String GIF_FILE_EXTENSION = "gif";
+    static final String GIF_MIME_TYPE = "image/gif";
+
+    static final String HISTORY_DIR_NAME = "history";
+    static final int THUMBNAIL_HEIGHT_IN_DP = 96;
+    static final float THUMBNAIL_CACHE_HEAP_FRACTION = 1 / 16f;
+
+    // Mosaic of artworks to pick from
+    static final int MOSAIC_COLUMNS = 4;
+    static final int MOSAIC_ROWS = 5;
+    static final int MOSAIC_GAP_IN_DP = 4;
+
+    static final String PERF_STATS_FILE_NAME = "perf_stats.json";
+
+    static final String STATE_ARTWORK = "artwork";
+    static final String STATE_ARTWORK_SATURATION = "artwork_saturation";
+    static final String STATE_ARTWORK_BRIGHTNESS = "artwork_brightness";
+    static final String STATE_SUBTREE_DEPTH_LIMITS = "subtree_depth_limits";
 
     ArtworkGenerator artworkGenerator;
+    ArtworkNodePool nodePool;
     Artwork artwork;
     ConstrainedColorSampler colorSampler;
 
@@ -65,11 +130,38 @@ public class ShowArtworkActivity extends AppCompatActivity {
     ImageView gridSizeImageView;
 
     float saturation;
+    // Subtree edited by the controls, selected with a long press, or null for the whole artwork
+    ArtworkNode selectedSubtree;
+    GradientDrawable selectionHighlight;
+
+    // Fill style of the whole artwork, kept for the next ones; the shaders are shared by all
+    FillStyle fillStyle = FillStyle.FLAT;
+    final TileShaderCache shaderCache = new TileShaderCache();
+
+    // All the history I/O runs on a single background thread
+    ArtworkHistory history;
+    ThumbnailCache thumbnailCache;
+    ExecutorService historyExecutor;
+    ExecutorService exportExecutor;
+    Runnable pendingWriteAction;
+
+    interface HistoryTask {
+        void run(ArtworkHistory history) throws IOException;
+    }
+
+    PerfMonitor perfMonitor = new PerfMonitor();
+    ColorTransition colorTransition = new ColorTransition(perfMonitor);
+    TextView perfOverlay;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_show_artwork);
+        colorTransition.setDuration(COLOR_TRANSITION_MILLIS);
+        selectionHighlight = new GradientDrawable();
+        selectionHighlight.setColor(Color.TRANSPARENT);
+        selectionHighlight.setStroke(Util.dpToPx(this, SELECTION_STROKE_WIDTH_IN_DP),
+                getColor(R.color.colorAccent));
 
         // Find ID of relevant views
         artworkFrame = findViewById(R.id.artwork_frame);
@@ -88,28 +180,220 @@ public class ShowArtworkActivity extends AppCompatActivity {
         newArtworkButton.setOnClickListener(view -> generateAndShowNewArtwork());
 
         // Generate the artwork
-        colorSampler = HueOffsetColorSampler.withGoldenRatioOffset()
+        colorSampler = new SpreadPaletteColorSampler()
                 .setSaturation(INITIAL_SATURATION)
                 .setBrightnessRange(MIN_BRIGHTNESS, MAX_BRIGHTNESS);
+        nodePool = new ArtworkNodePool(artworkFrame.getContext());
         artworkGenerator = new ArtworkGenerator();
+        artworkGenerator.setNodePool(nodePool);
         artworkGenerator.setColorSampler(colorSampler);
         artworkGenerator.setStrokeWidthInDp(DEFAULT_GRID_SIZE_IN_DP);
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        artworkGenerator.setMaxNodes(activityManager.isLowRamDevice()
+                ? LOW_RAM_MAX_NODES
+                : MAX_NODES);
+        artworkGenerator.setNumCandidates(activityManager.isLowRamDevice()
+                        ? LOW_RAM_NUM_CANDIDATES
+                        : NUM_CANDIDATES,
+                CANDIDATES_TIME_BUDGET_MILLIS);
+        artworkGenerator.setScoringDepthLimit(DEFAULT_DEPTH_LIMIT);
+
+        // Open the history
+        thumbnailCache = ThumbnailCache.withHeapFraction(THUMBNAIL_CACHE_HEAP_FRACTION);
+        history = new ArtworkHistory(new File(getFilesDir(), HISTORY_DIR_NAME));
+        historyExecutor = Executors.newSingleThreadExecutor();
+        exportExecutor = Executors.newSingleThreadExecutor();
+        runOnHistoryThread(ArtworkHistory::open);
+
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_ARTWORK)) {
+            // Recreated, e.g. for a new window size or after the process was killed
+            byte[] description = savedInstanceState.getByteArray(STATE_ARTWORK);
+            float artworkSaturation = savedInstanceState.getFloat(STATE_ARTWORK_SATURATION);
+            float artworkBrightness = savedInstanceState.getFloat(STATE_ARTWORK_BRIGHTNESS);
+            int[] depthLimits = savedInstanceState.getIntArray(STATE_SUBTREE_DEPTH_LIMITS);
+            artworkFrame.post(() -> restoreSavedArtwork(description, artworkSaturation,
+                    artworkBrightness, depthLimits));
+        } else {
+            artworkFrame.post(this::generateAndShowNewArtwork);
+        }
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Bundle savedInstanceState) {
+        super.onRestoreInstanceState(savedInstanceState);
+        // The seek bars got their progress back as programmatic changes, which the listeners
+        // ignore: bring the sampler and the generator in line with them
+        saturation = (float) saturationBar.getProgress() / saturationBar.getMax();
+        colorSampler.setSaturation(saturation);
+        artworkGenerator.setScoringDepthLimit(depthLimitBar.getProgress() + MIN_DEPTH_LIMIT);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (artwork == null)
+            return;
+        // The artwork itself rather than its seed: it may have been edited, or come from the
+        // mosaic or the history, and generating again may give another one
+        outState.putByteArray(STATE_ARTWORK, ArtworkCodec.encode(artwork));
+        outState.putFloat(STATE_ARTWORK_SATURATION, artwork.getSaturation());
+        outState.putFloat(STATE_ARTWORK_BRIGHTNESS, artwork.getBrightness());
+        outState.putIntArray(STATE_SUBTREE_DEPTH_LIMITS, artwork.getSubtreeDepthLimits());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        runOnHistoryThread(ArtworkHistory::close);
+        historyExecutor.shutdown();
+        exportExecutor.shutdown();
+    }
+
+    /**
+     * While running, frees memory in order of cost to rebuild as the pressure grows: first the
+     * views of the hidden parts of the artwork and the pooled nodes, then the palettes and the
+     * generated models, and last the thumbnails and shaders.
+     * Once the UI is hidden, only the pooled nodes go, as they are needed just for the next
+     * artwork; in the background, what is not needed to show the artwork again goes too, and
+     * everything else once the process is about to be killed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        long before = (artwork != null) ? artwork.estimateRetainedSize().total() : 0;
+        if (level <= TRIM_MEMORY_RUNNING_CRITICAL) {
+            if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+                nodePool.clear();
+                shedHiddenSubtrees();
+            }
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                PaletteColorSampler.clearPaletteCache();
+                ArtworkGenerator.clearModelCache();
+            }
+            if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+                thumbnailCache.evictAll();
+                shaderCache.clear();
+            }
+        } else {
+            nodePool.clear();
+            if (level >= TRIM_MEMORY_BACKGROUND) {
+                thumbnailCache.evictAll();
+                PaletteColorSampler.clearPaletteCache();
+            }
+            if (level >= TRIM_MEMORY_MODERATE) {
+                shedHiddenSubtrees();
+                ArtworkGenerator.clearModelCache();
+                shaderCache.clear();
+            }
+        }
+        if (artwork != null) {
+            updatePerfCounters();
+            Log.i(TAG, "Trim memory (level " + level + "): artwork retained " + before + " -> "
+                    + artwork.estimateRetainedSize().total() + " bytes");
+        }
+    }
 
-        artworkFrame.post(this::generateAndShowNewArtwork);
+    void shedHiddenSubtrees() {
+        if (artwork == null)
+            return;
+        colorTransition.end();
+        int numShed = artwork.shedHiddenSubtrees();
+        if (selectedSubtree != null && !artwork.contains(selectedSubtree))
+            selectSubtree(null);
+        Log.i(TAG, "Shed " + numShed + " hidden nodes");
     }
 
     void generateAndShowNewArtwork() {
         Log.i(TAG, "Create new");
+        showGeneratedArtwork(artworkGenerator.nextSeed());
+        recordInHistory(0);
+    }
+
+    /**
+     * Shows again the artwork saved by onSaveInstanceState, with its colors and depth limits,
+     * without recording it in the history. Its edits can't be undone anymore.
+     */
+    void restoreSavedArtwork(byte[] description, float artworkSaturation,
+                             float artworkBrightness, int[] subtreeDepthLimits) {
+        Log.i(TAG, "Restore saved artwork");
+        recycleArtwork();
+        Artwork restored = ArtworkCodec.decode(artworkFrame.getContext(), nodePool,
+                ByteBuffer.wrap(description));
+        restored.setStrokeWidth(gridSizeBar.getProgress());
+        restored.restoreSaturation(artworkSaturation);
+        restored.restoreBrightness(artworkBrightness);
+        showArtwork(restored);
+        if (subtreeDepthLimits != null)
+            artwork.restoreSubtreeDepthLimits(subtreeDepthLimits);
+    }
+
+    /**
+     * Shows the artwork of a seed, generating it only if the generator doesn't have it cached.
+     */
+    void showGeneratedArtwork(long seed) {
+        recycleArtwork();
+        long start = perfMonitor.begin(Operation.GENERATE_ARTWORK);
+        Artwork newArtwork = artworkGenerator.generateArtwork(artworkFrame.getContext(), seed,
+                artworkFrame.getWidth(), artworkFrame.getHeight());
+        perfMonitor.end(Operation.GENERATE_ARTWORK, start);
+        showArtwork(newArtwork);
+    }
+
+    /**
+     * Detaches the current artwork and gives its nodes back to the pool.
+     */
+    void recycleArtwork() {
+        colorTransition.end();
+        artworkFrame.removeAllViews();
+        selectSubtree(null);
+        if (artwork != null)
+            artwork.recycle(nodePool);
+        artwork = null;
+    }
+
+    void showArtwork(Artwork newArtwork) {
         artworkFrame.removeAllViews();
-        artwork = artworkGenerator.generateArtwork(
-                artworkFrame.getContext(), artworkFrame.getWidth(), artworkFrame.getHeight());
+        artwork = newArtwork;
+        artwork.setMinNeighborColorDistance(MIN_NEIGHBOR_COLOR_DISTANCE);
         artworkFrame.addView(artwork.getView(), MATCH_PARENT, MATCH_PARENT);
         onDepthLimitChange(depthLimitBar.getProgress());
+        if (fillStyle != FillStyle.FLAT)
+            artwork.setFillStyle(fillStyle, shaderCache);
         artwork.setOnNodesClickListener(node -> {
-            float newHue = node.getHue() / 360f + HUE_OFFSET_ON_TAP;
-            newHue = 360f * (newHue - (int) newHue);
-            node.setHue(newHue);
+            float shiftedHue = node.getHue() / 360f + HUE_OFFSET_ON_TAP;
+            float newHue = 360f * (shiftedHue - (int) shiftedHue);
+            colorTransition.run(Collections.singletonList(node),
+                    () -> artwork.setHue(node, newHue));
         });
+        artwork.setOnNodesLongClickListener(this::selectEnclosingSubtree);
+    }
+
+    /**
+     * Selects the subtree that encloses the tile, so that the controls edit only that part of
+     * the artwork. Long-pressing again inside the selection extends it to the enclosing subtree,
+     * until the whole artwork is selected.
+     */
+    void selectEnclosingSubtree(ArtworkNode tile) {
+        boolean isInSelection = selectedSubtree != null
+                && artwork.isInSubtree(selectedSubtree, tile);
+        ArtworkNode subtree = artwork.getParent(isInSelection ? selectedSubtree : tile);
+        selectSubtree(subtree == artwork.getRoot() ? null : subtree);
+        Log.i(TAG, (selectedSubtree == null) ? "Selected the whole artwork" : "Selected a subtree");
+    }
+
+    void selectSubtree(ArtworkNode subtree) {
+        if (selectedSubtree != null)
+            selectedSubtree.setForeground(null);
+        selectedSubtree = subtree;
+        if (subtree != null)
+            subtree.setForeground(selectionHighlight);
+    }
+
+    /**
+     * Returns the part of the artwork edited by the controls.
+     */
+    ArtworkNode getEditedSubtree() {
+        return (selectedSubtree != null) ? selectedSubtree : artwork.getRoot();
     }
 
     void initSaturationSeekBar() {
@@ -123,24 +407,36 @@ public class ShowArtworkActivity extends AppCompatActivity {
         // Saturation bar listener
         saturationBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
                  @Override
-            public void onProgressChanged(SeekBar seekBar, int i, boolean b) {
-                onSaturationChange(i);
+            public void onProgressChanged(SeekBar seekBar, int i, boolean fromUser) {
+                // Programmatic changes come from undo/redo, which already restored the artwork
+                if (fromUser)
+                    onSaturationChange(i);
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
+                if (artwork != null)
+                    artwork.beginContinuousEdit();
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                if (artwork != null)
+                    artwork.endContinuousEdit();
             }
         });
     }
 
     void onSaturationChange(int saturationLevel) {
         saturation = (float) saturationLevel / saturationBar.getMax();
-        artwork.setSaturation(saturation);
-        colorSampler.setSaturation(saturation);
+        long start = perfMonitor.begin(Operation.SET_SATURATION);
+        colorTransition.end();
+        ArtworkNode subtree = getEditedSubtree();
+        artwork.setSaturation(subtree, saturation);
+        perfMonitor.end(Operation.SET_SATURATION, start);
+        // The next colors follow the saturation of the whole artwork only
+        if (subtree == artwork.getRoot())
+            colorSampler.setSaturation(saturation);
         Log.i(TAG, "Setting saturation to " + saturation + " (level " + saturationLevel + ")");
     }
 
@@ -151,22 +447,35 @@ public class ShowArtworkActivity extends AppCompatActivity {
         // Saturation bar listener
         depthLimitBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
-            public void onProgressChanged(SeekBar seekBar, int i, boolean b) {
-                onDepthLimitChange(i);
+            public void onProgressChanged(SeekBar seekBar, int i, boolean fromUser) {
+                if (fromUser)
+                    onDepthLimitChange(i);
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
+                if (artwork != null)
+                    artwork.beginContinuousEdit();
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                if (artwork != null)
+                    artwork.endContinuousEdit();
             }
         });
     }
 
     void onDepthLimitChange(int depth) {
-        artwork.setDepthLimit(depth + MIN_DEPTH_LIMIT);
+        colorTransition.end();
+        long start = perfMonitor.begin(Operation.SET_DEPTH_LIMIT);
+        ArtworkNode subtree = getEditedSubtree();
+        artwork.setDepthLimit(subtree, depth + MIN_DEPTH_LIMIT);
+        perfMonitor.end(Operation.SET_DEPTH_LIMIT, start);
+        // Pick the next artworks by what's visible at this depth
+        if (subtree == artwork.getRoot())
+            artworkGenerator.setScoringDepthLimit(depth + MIN_DEPTH_LIMIT);
+        updatePerfCounters();
         Log.i(TAG, "Setting max depth to " + depth);
     }
 
@@ -192,23 +501,221 @@ public class ShowArtworkActivity extends AppCompatActivity {
     }
 
     void onGridSizeChange(int marginInDp) {
+        colorTransition.end();
         Log.i(TAG, "Setting grid size to " + marginInDp + " dp");
         gridSizeImageView.setImageResource((marginInDp == 0)
                 ? R.drawable.ic_grid_off_black_36dp
                 : R.drawable.ic_grid_on_black_36dp);
         artworkGenerator.setStrokeWidthInDp(marginInDp);
+        // Restoring the seek bar notifies before the first artwork is shown
+        if (artwork == null)
+            return;
+        long start = perfMonitor.begin(Operation.SET_STROKE_WIDTH);
         artwork.setStrokeWidth(marginInDp);
+        perfMonitor.end(Operation.SET_STROKE_WIDTH, start);
     }
 
     void recolorArtwork() {
         Log.i(TAG, "Recolor");
-        artwork.recolor(colorSampler);
+        long start = perfMonitor.begin(Operation.RECOLOR);
+        ArtworkNode subtree = getEditedSubtree();
+        colorTransition.run(artwork.getVisibleTiles(subtree),
+                () -> artwork.recolor(subtree, colorSampler));
+        perfMonitor.end(Operation.RECOLOR, start);
+    }
+
+    /**
+     * Undoes or redoes the last edit of the artwork, then moves the controls to the saturation
+     * and depth limit it restored.
+     */
+    void undoArtworkEdit(boolean redo) {
+        colorTransition.end();
+        boolean changed = redo ? artwork.redo() : artwork.undo();
+        if (!changed)
+            return;
+        Log.i(TAG, redo ? "Redo" : "Undo");
+
+        float restoredSaturation = artwork.getSaturation();
+        if (!Float.isNaN(restoredSaturation) && restoredSaturation != saturation) {
+            saturation = restoredSaturation;
+            saturationBar.setProgress(Math.round(saturation * saturationBar.getMax()));
+            colorSampler.setSaturation(saturation);
+        }
+        int depthLimit = artwork.getDepthLimit();
+        if (depthLimit != Artwork.NO_DEPTH_LIMIT) {
+            depthLimitBar.setProgress(depthLimit - MIN_DEPTH_LIMIT);
+            artworkGenerator.setScoringDepthLimit(depthLimit);
+            updatePerfCounters();
+        }
+    }
+
+    void updatePerfCounters() {
+        int numNodes = artwork.countNodes();
+        int numLiveNodes = numNodes - artwork.countShedNodes();
+        perfMonitor.setCounter(Counter.NODES, numNodes);
+        perfMonitor.setCounter(Counter.VIEWS, numLiveNodes * ArtworkNode.VIEWS_PER_NODE);
+        perfMonitor.setCounter(Counter.RETAINED_BYTES, artwork.estimateRetainedSize().total());
+        perfMonitor.setCounter(Counter.VISIBLE_LEAVES, artwork.countVisibleLeaves());
+    }
+
+    /**
+     * Shows or hides a debug overlay with the performance stats. Frame intervals are recorded
+     * only while the overlay is shown.
+     */
+    void togglePerfOverlay() {
+        if (perfOverlay == null) {
+            perfOverlay = new TextView(this);
+            perfOverlay.setTextSize(10);
+            perfOverlay.setTextColor(0xFFFFFFFF);
+            perfOverlay.setBackgroundColor(0xA0000000);
+            perfOverlay.setClickable(false);
+            addContentView(perfOverlay, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            perfOverlay.setVisibility(View.GONE);
+        }
+
+        if (perfOverlay.getVisibility() == View.VISIBLE) {
+            perfOverlay.setVisibility(View.GONE);
+            perfMonitor.setOnUpdateListener(null);
+            perfMonitor.stopFrameMonitoring();
+        } else {
+            perfOverlay.setVisibility(View.VISIBLE);
+            perfOverlay.setText(perfMonitor.summary());
+            perfMonitor.setOnUpdateListener(monitor -> perfOverlay.setText(monitor.summary()));
+            perfMonitor.startFrameMonitoring();
+        }
+    }
+
+    /**
+     * Writes the performance stats as JSON into the app external files directory (and to the log).
+     */
+    void dumpPerfStats() {
+        File file = new File(getExternalFilesDir(null), PERF_STATS_FILE_NAME);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            String json = perfMonitor.toJson().toString(2);
+            Log.i(TAG, "Performance stats:\n" + json);
+            out.write(json.getBytes("UTF-8"));
+            Toast.makeText(this, file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to dump the performance stats", e);
+        }
+    }
+
+
+    /**
+     * Records the current artwork in the history. The thumbnail is captured after the next layout
+     * pass, while compression and I/O happen on the history thread.
+     */
+    void recordInHistory(int flags) {
+        Artwork recorded = artwork;
+        artworkFrame.post(() -> {
+            if (recorded != artwork || artworkFrame.getHeight() == 0)
+                return;
+            byte[] description = ArtworkCodec.encode(recorded);
+            float scale = Util.dpToPx(this, THUMBNAIL_HEIGHT_IN_DP)
+                    / (float) artworkFrame.getHeight();
+            Bitmap thumbnail = captureView(R.id.artwork_frame, scale);
+            runOnHistoryThread(history -> {
+                ArtworkHistory.Entry entry = history.append(description, thumbnail, flags);
+                thumbnailCache.put(entry.id, thumbnail);
+            });
+        });
     }
 
+    /**
+     * Runs the action once the artwork frame has a size: right away if it was laid out already
+     * (it's not yet when a dialog is recreated with the activity).
+     */
+    void runWhenArtworkFrameLaidOut(Runnable action) {
+        if (artworkFrame.getWidth() > 0 && artworkFrame.getHeight() > 0) {
+            action.run();
+            return;
+        }
+        artworkFrame.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if (right == left || bottom == top)
+                    return;
+                view.removeOnLayoutChangeListener(this);
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Starts generating the artworks of the mosaic in the background, as thumbnails of the
+     * current artwork view, with the current colors and depth limit. The artwork frame must be
+     * laid out (see runWhenArtworkFrameLaidOut).
+     */
+    MosaicRenderer renderMosaic(MosaicRenderer.OnSlotRenderedListener listener) {
+        int frameWidth = artworkFrame.getWidth();
+        int frameHeight = artworkFrame.getHeight();
+        int slotHeight = Util.dpToPx(this, THUMBNAIL_HEIGHT_IN_DP);
+        int slotWidth = Math.max(1, Math.round((float) slotHeight * frameWidth / frameHeight));
+        float scale = (float) slotHeight / frameHeight;
+        float strokeWidth = Math.max(1f, Util.dpToPx(this, gridSizeBar.getProgress()) * scale);
+
+        MosaicRenderer renderer = new MosaicRenderer(MOSAIC_COLUMNS, MOSAIC_ROWS,
+                slotWidth, slotHeight, Util.dpToPx(this, MOSAIC_GAP_IN_DP));
+        renderer.render(artworkGenerator.getTreeGenerator(), colorSampler,
+                artworkGenerator.isForcingWhiteNodes(),
+                Util.pxToDp(this, frameWidth), Util.pxToDp(this, frameHeight), strokeWidth,
+                depthLimitBar.getProgress() + MIN_DEPTH_LIMIT, ForkJoinPool.commonPool(),
+                this::runOnUiThread, listener);
+        return renderer;
+    }
+
+    /**
+     * Shows an artwork of the mosaic in full, creating its views from the model it was drawn
+     * from.
+     */
+    void showMosaicArtwork(ArtworkModel model) {
+        Log.i(TAG, "Show artwork from the mosaic");
+        recycleArtwork();
+        Artwork promoted = artworkGenerator.buildArtwork(artworkFrame.getContext(), model);
+        promoted.setStrokeWidth(gridSizeBar.getProgress());
+        showArtwork(promoted);
+        recordInHistory(0);
+    }
+
+    void restoreFromHistory(ArtworkHistory.Entry entry) {
+        Log.i(TAG, "Restore artwork from history (" + entry.timestamp + ")");
+        runOnHistoryThread(history -> {
+            ByteBuffer mapped = history.readDescription(entry);
+            if (mapped == null)
+                return;
+            // Copy the description: the mapping is invalidated by compactions
+            ByteBuffer description = ByteBuffer.allocate(mapped.remaining()).put(mapped);
+            description.flip();
+            artworkFrame.post(() -> {
+                recycleArtwork();
+                Artwork restored = ArtworkCodec.decode(artworkFrame.getContext(), nodePool,
+                        description);
+                restored.setStrokeWidth(gridSizeBar.getProgress());
+                showArtwork(restored);
+            });
+        });
+    }
+
+    void runOnHistoryThread(HistoryTask task) {
+        historyExecutor.execute(() -> {
+            try {
+                task.run(history);
+            } catch (IOException e) {
+                Log.e(TAG, "History I/O error", e);
+            }
+        });
+    }
+
+    ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.show_artwork_menu, menu);
+        menu.setGroupVisible(R.id.debug_menu_group, BuildConfig.DEBUG);
         return true;
     }
 
@@ -221,41 +728,148 @@ public class ShowArtworkActivity extends AppCompatActivity {
                 infoDialogFragment.show(getFragmentManager(), "More info");
                 break;
 
+            case R.id.undo_menu_item:
+                undoArtworkEdit(false);
+                break;
+
+            case R.id.redo_menu_item:
+                undoArtworkEdit(true);
+                break;
+
+            case R.id.fill_style_menu_item:
+                showFillStyleDialog();
+                break;
+
+            case R.id.mosaic_menu_item:
+                MosaicDialogFragment mosaicDialogFragment = MosaicDialogFragment.newInstance();
+                mosaicDialogFragment.show(getFragmentManager(), "Mosaic");
+                break;
+
+            case R.id.history_menu_item:
+                HistoryDialogFragment historyDialogFragment = HistoryDialogFragment.newInstance();
+                historyDialogFragment.show(getFragmentManager(), "History");
+                break;
+
+            case R.id.perf_overlay_menu_item:
+                togglePerfOverlay();
+                break;
+
+            case R.id.perf_dump_menu_item:
+                dumpPerfStats();
+                break;
+
+            case R.id.export_recolor_gif_menu_item:
+                runWithWritePermission(() -> onExportGifActionSelected(false));
+                break;
+
+            case R.id.export_hue_gif_menu_item:
+                runWithWritePermission(() -> onExportGifActionSelected(true));
+                break;
+
             case R.id.save_menu_item:
-                onSaveActionSelected();
+                runWithWritePermission(this::onSaveActionSelected);
         }
         return true;
     }
 
-    private void onSaveActionSelected() {
+    /**
+     * Lets the user pick the fill style of the tiles of the edited subtree.
+     */
+    private void showFillStyleDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.fill_style_action)
+                .setItems(R.array.fill_style_names, (dialog, which) -> {
+                    FillStyle style = FillStyle.values()[which];
+                    ArtworkNode subtree = getEditedSubtree();
+                    if (subtree == artwork.getRoot())
+                        fillStyle = style;
+                    artwork.setFillStyle(subtree, style, shaderCache);
+                })
+                .show();
+    }
+
+    /**
+     * Runs the action if the app can write to the external storage, otherwise requests the
+     * permission and runs the action once it's granted.
+     */
+    private void runWithWritePermission(Runnable action) {
         Log.i(TAG, "Checking permission for WRITE_EXTERNAL_STORAGE");
 
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED) {
             // Permission is missing and must be requested.
+            pendingWriteAction = action;
             requestWriteExternalStoragePermission();
         } else {
             // Permission granted
-            Bitmap image = captureView(R.id.artwork_frame);
-            String imagePath = saveImageToGallery(image, generateFileName());
-            if (imagePath != null) {
-                showToast(R.string.image_saved_message, Toast.LENGTH_LONG);
-                scanAndOpenImageFile(imagePath);
-            }
+            action.run();
+        }
+    }
+
+    private void onSaveActionSelected() {
+        long start = perfMonitor.begin(Operation.SAVE);
+        Bitmap image = captureView(R.id.artwork_frame);
+        String imagePath = saveImageToGallery(image, generateFileName());
+        perfMonitor.end(Operation.SAVE, start);
+        if (imagePath != null) {
+            recordInHistory(ArtworkHistory.FLAG_SAVED);
+            showToast(R.string.image_saved_message, Toast.LENGTH_LONG);
+            scanAndOpenImageFile(imagePath, IMAGE_MIME_TYPE);
         }
     }
 
-    private void scanAndOpenImageFile(String imagePath) {
+    /**
+     * Exports an animated GIF of the artwork going through GIF_NUM_FRAMES recolors, or a full
+     * hue rotation. Frames are generated and encoded in the background, on a copy of the
+     * artwork.
+     */
+    private void onExportGifActionSelected(boolean rotateHue) {
+        colorTransition.end();
+        int frameWidth = artworkFrame.getWidth();
+        int frameHeight = artworkFrame.getHeight();
+        float scale = Math.min(1f, GIF_MAX_SIZE_IN_PX / (float) Math.max(frameWidth, frameHeight));
+        int width = Math.max(1, Math.round(frameWidth * scale));
+        int height = Math.max(1, Math.round(frameHeight * scale));
+        float strokeWidth = Util.dpToPx(this, gridSizeBar.getProgress()) * scale;
+        ArtworkModel model = artwork.toModel();
+        ColorSampler sampler = colorSampler.fork();
+        int frameDelay = rotateHue ? GIF_HUE_FRAME_DELAY_MILLIS : GIF_RECOLOR_FRAME_DELAY_MILLIS;
+        showToast(R.string.gif_export_started_message, Toast.LENGTH_SHORT);
+
+        exportExecutor.execute(() -> {
+            ArtworkGifExporter exporter = new ArtworkGifExporter(
+                    model, width, height, strokeWidth, TileRasterizer.DEFAULT_STROKE_COLOR);
+            for (int i = 0; i < GIF_NUM_FRAMES; i++) {
+                exporter.addFrame(frameDelay);
+                if (rotateHue)
+                    model.rotateHue(360f / GIF_NUM_FRAMES);
+                else
+                    model.recolor(sampler);
+            }
+            String gifPath = saveToGallery(generateFileName(GIF_FILE_EXTENSION), out -> {
+                exporter.write(out, ForkJoinPool.commonPool());
+                return true;
+            });
+            if (gifPath != null) {
+                runOnUiThread(() -> {
+                    showToast(R.string.image_saved_message, Toast.LENGTH_LONG);
+                    scanAndOpenImageFile(gifPath, GIF_MIME_TYPE);
+                });
+            }
+        });
+    }
+
+    private void scanAndOpenImageFile(String imagePath, String mimeType) {
         // Tell the media scanner to register the new image and open it as soon as the image
         // has been scanned
         String[] pathsToScan = new String[]{imagePath};
-        String[] mimeTypes = new String[]{"image/png"};
+        String[] mimeTypes = new String[]{mimeType};
         MediaScannerConnection.scanFile(this, pathsToScan, mimeTypes,
                 (path, uri) -> {
                     Log.i("ExternalStorage", "Scanned " + path + ":");
                     Log.i("ExternalStorage", "-> uri = " + uri);
                     Intent showImageIntent = new Intent(Intent.ACTION_VIEW);
-                    showImageIntent.setDataAndType(uri, "image/png");
+                    showImageIntent.setDataAndType(uri, mimeType);
                     if (showImageIntent.resolveActivity(getPackageManager()) != null) {
                         startActivity(showImageIntent);
                     } else {
@@ -280,8 +894,11 @@ public class ShowArtworkActivity extends AppCompatActivity {
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         if (requestCode == PERMISSION_REQUEST_WRITE_EXTERNAL_STORAGE) {
+            Runnable action = pendingWriteAction;
+            pendingWriteAction = null;
             if (grantResults.length == 1 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                onSaveActionSelected();
+                if (action != null)
+                    action.run();
             } else {
                 // Permission request was denied.
                 showToast(R.string.external_storage_permission_denied, Toast.LENGTH_LONG);
@@ -290,6 +907,22 @@ public class ShowArtworkActivity extends AppCompatActivity {
     }
 
     public String saveImageToGallery(Bitmap image, String filename) {
+        return saveToGallery(filename, out -> image.compress(IMAGE_FILE_FORMAT, 100, out));
+    }
+
+    interface GalleryFileWriter {
+        /**
+         * @return true if the file was written successfully
+         */
+        boolean write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Creates a file in the gallery folder of the app and streams its content through writer.
+     * Can be called from any thread.
+     * @return the path of the file, or null if it couldn't be written
+     */
+    public String saveToGallery(String filename, GalleryFileWriter writer) {
         final String APP_NAME = getString(R.string.app_name);
         String appImagesFolderPath =
                 Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
@@ -303,45 +936,57 @@ public class ShowArtworkActivity extends AppCompatActivity {
             try {
                 created = appImageFolder.mkdirs();
             } catch (SecurityException e) {
-            } finally {
-                if (!created)
-                    showErrorDialog(R.string.unable_to_create_gallery_folder_error);
             }
-            return null;
+            if (!created) {
+                runOnUiThread(() ->
+                        showErrorDialog(R.string.unable_to_create_gallery_folder_error));
+                return null;
+            }
         }
 
         // Store the image into the folder
         File imageFile = new File(appImagesFolderPath, filename);
         boolean success = false;
-        try (FileOutputStream out = new FileOutputStream(imageFile)) {
-            success = image.compress(IMAGE_FILE_FORMAT, 100, out);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(imageFile))) {
+            success = writer.write(out);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         if (!success) {
-            showErrorDialog(R.string.impossible_to_save_error);
+            runOnUiThread(() -> showErrorDialog(R.string.impossible_to_save_error));
             return null;
         }
         return imageFile.getAbsolutePath();
     }
 
     public Bitmap captureView(int viewId) {
+        return captureView(viewId, 1f);
+    }
+
+    public Bitmap captureView(int viewId, float scale) {
+        // Capture the final colors, not a frame of a transition
+        colorTransition.end();
         //Find the view we are after
         View view = findViewById(viewId);
-        //Create a Bitmap with the same dimensions
-        Bitmap image = Bitmap.createBitmap(view.getWidth(),
-                view.getHeight(),
+        //Create a Bitmap with the (scaled) dimensions of the view
+        Bitmap image = Bitmap.createBitmap(Math.max(1, Math.round(view.getWidth() * scale)),
+                Math.max(1, Math.round(view.getHeight() * scale)),
                 Bitmap.Config.RGB_565);
         //Draw the view inside the Bitmap
-        view.draw(new Canvas(image));
+        Canvas canvas = new Canvas(image);
+        canvas.scale(scale, scale);
+        view.draw(canvas);
         return image;
     }
 
     String generateFileName() {
+        return generateFileName(IMAGE_FILE_FORMAT.toString().toLowerCase());
+    }
+
+    String generateFileName(String extension) {
         long timeMillis = System.currentTimeMillis();
-        String fileFormat = IMAGE_FILE_FORMAT.toString().toLowerCase();
-        return String.format("artwork_%d.%s", timeMillis, fileFormat);
+        return String.format("artwork_%d.%s", timeMillis, extension);
     }
 
     public void showErrorDialog(@StringRes int messageId) {
@@ -0,0 +1,50 @@
+package com.janluke.modernartui.colors;
+
+import java.util.Arrays;
+
+
+/**
+ * Immutable snapshot of the HSB constraints of a ConstrainedColorSampler. It can be handed to
+ * other threads, compared and used as a key, while the sampler it comes from keeps changing.
+ */
+public final class ColorConstraints {
+
+    private final float[] min;
+    private final float[] max;
+
+    ColorConstraints(float[] min, float[] max) {
+        this.min = min.clone();
+        this.max = max.clone();
+    }
+
+    public float getMin(int component) {
+        return min[component];
+    }
+
+    public float getMax(int component) {
+        return max[component];
+    }
+
+    public boolean hasFixed(int component) {
+        return min[component] == max[component];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ColorConstraints))
+            return false;
+        ColorConstraints other = (ColorConstraints) o;
+        return Arrays.equals(min, other.min) && Arrays.equals(max, other.max);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(min) + Arrays.hashCode(max);
+    }
+
+    @Override
+    public String toString() {
+        return "ColorConstraints{min=" + Arrays.toString(min) + ", max=" + Arrays.toString(max)
+                + "}";
+    }
+}
@@ -4,7 +4,6 @@ package com.janluke.modernartui.colors;
 /**
  * Can be used to generate a sequence of colors.
  */
-@FunctionalInterface
 public interface ColorSampler {
 
     /**
@@ -12,4 +11,12 @@ public interface ColorSampler {
      * @return integer representation of a color (the same used by Android Color APIs)
      */
     int nextColor();
+
+    /**
+     * Returns an independent sampler with the same settings, whose sequence is seeded from this
+     * one: a sampler with a given seed always yields the same forks, in the same order, each
+     * producing the same colors. Forks share no mutable state with this sampler, so each can
+     * be used by a different thread without locks; forking itself is not thread-safe.
+     */
+    ColorSampler fork();
 }
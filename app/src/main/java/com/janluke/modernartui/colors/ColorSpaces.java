@@ -0,0 +1,121 @@
+package com.janluke.modernartui.colors;
+
+
+/**
+ * Color space conversions that don't depend on the Android framework.
+ * Colors are packed in ints as 0xAARRGGBB, like in the Android Color APIs; HSB components use
+ * the same ranges as Color.HSVToColor (hue in [0, 360), saturation and brightness in [0, 1]).
+ * CIELAB coordinates are computed for sRGB colors under the D65 white point.
+ */
+public class ColorSpaces {
+
+    // D65 reference white
+    static final float XN = 0.95047f;
+    static final float YN = 1f;
+    static final float ZN = 1.08883f;
+
+    // Linearized sRGB value of each 8-bit channel value
+    private static final float[] LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (float) ((c <= 0.04045) ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private ColorSpaces() {
+    }
+
+    public static int hsbToColor(float hue, float saturation, float brightness) {
+        float h = (hue % 360f + 360f) % 360f / 60f;
+        int sector = (int) h;
+        float f = h - sector;
+        float v = brightness;
+        float p = v * (1f - saturation);
+        float q = v * (1f - saturation * f);
+        float t = v * (1f - saturation * (1f - f));
+        float r, g, b;
+        switch (sector) {
+            case 0:  r = v; g = t; b = p; break;
+            case 1:  r = q; g = v; b = p; break;
+            case 2:  r = p; g = v; b = t; break;
+            case 3:  r = p; g = q; b = v; break;
+            case 4:  r = t; g = p; b = v; break;
+            default: r = v; g = p; b = q; break;
+        }
+        return argb(r, g, b);
+    }
+
+    public static int hsbToColor(float[] hsb) {
+        return hsbToColor(hsb[0], hsb[1], hsb[2]);
+    }
+
+    /**
+     * Converts a color to HSB, writing the three components in hsb, starting at offset.
+     */
+    public static void colorToHsb(int color, float[] hsb, int offset) {
+        float r = ((color >> 16) & 0xFF) / 255f;
+        float g = ((color >> 8) & 0xFF) / 255f;
+        float b = (color & 0xFF) / 255f;
+        float max = Math.max(r, Math.max(g, b));
+        float min = Math.min(r, Math.min(g, b));
+        float delta = max - min;
+
+        float hue;
+        if (delta == 0)
+            hue = 0;
+        else if (max == r)
+            hue = 60f * (((g - b) / delta + 6f) % 6f);
+        else if (max == g)
+            hue = 60f * ((b - r) / delta + 2f);
+        else
+            hue = 60f * ((r - g) / delta + 4f);
+
+        hsb[offset] = hue;
+        hsb[offset + 1] = (max == 0) ? 0 : delta / max;
+        hsb[offset + 2] = max;
+    }
+
+    private static int argb(float r, float g, float b) {
+        return 0xFF000000
+                | (Math.round(r * 255f) << 16)
+                | (Math.round(g * 255f) << 8)
+                | Math.round(b * 255f);
+    }
+
+    /**
+     * Converts an RGB color to CIELAB.
+     * @param lab output array: L* in [0, 100], a* and b* roughly in [-128, 128]
+     */
+    public static void colorToLab(int color, float[] lab) {
+        float r = LINEAR[(color >> 16) & 0xFF];
+        float g = LINEAR[(color >> 8) & 0xFF];
+        float b = LINEAR[color & 0xFF];
+
+        float x = (0.4124f * r + 0.3576f * g + 0.1805f * b) / XN;
+        float y = (0.2126f * r + 0.7152f * g + 0.0722f * b) / YN;
+        float z = (0.0193f * r + 0.1192f * g + 0.9505f * b) / ZN;
+
+        float fx = labF(x);
+        float fy = labF(y);
+        float fz = labF(z);
+        lab[0] = 116f * fy - 16f;
+        lab[1] = 500f * (fx - fy);
+        lab[2] = 200f * (fy - fz);
+    }
+
+    private static float labF(float t) {
+        return (t > 0.008856f) ? (float) Math.cbrt(t) : 7.787f * t + 16f / 116f;
+    }
+
+    /**
+     * Squared CIE76 distance between two colors in CIELAB.
+     */
+    public static float labDistanceSquared(float[] lab1, float[] lab2) {
+        float dl = lab1[0] - lab2[0];
+        float da = lab1[1] - lab2[1];
+        float db = lab1[2] - lab2[2];
+        return dl * dl + da * da + db * db;
+    }
+}
@@ -11,21 +11,43 @@ import com.janluke.modernartui.Util;
  */
 public abstract class ConstrainedColorSampler<T extends ConstrainedColorSampler> implements ColorSampler {
     // Color component indexes
-    static final int H = 0;
-    static final int S = 1;
-    static final int B = 2;
+    public static final int H = 0;
+    public static final int S = 1;
+    public static final int B = 2;
     static final float[] COMPONENT_LIMIT = {360f, 1f, 1f};
 
+    // Weyl sequence increment used to derive the seeds of the forks (as in SplittableRandom)
+    static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
     protected float[] minValueOf = {0f, 0f, 0f};
     protected float[] maxValueOf = COMPONENT_LIMIT.clone();
 
+    private long seed = mix64(System.nanoTime());
+    private long forkCount;
+
     public T setComponentRange(int comp, float min, float max) {
         Util.checkArg(0f <= min && min <= max && max <= COMPONENT_LIMIT[comp]);
         minValueOf[comp] = min;
         maxValueOf[comp] = max;
+        onConstraintsChanged();
         return (T) this;
     }
 
+    /**
+     * Called every time the range of a component changes. Subclasses that precompute something
+     * from the constraints can override it to invalidate their data.
+     */
+    protected void onConstraintsChanged() {
+    }
+
+    public float getMin(int component) {
+        return minValueOf[component];
+    }
+
+    public float getMax(int component) {
+        return maxValueOf[component];
+    }
+
     public T setHueRange(float min, float max) {
         return setComponentRange(H, min, max);
     }
@@ -57,4 +79,57 @@ public abstract class ConstrainedColorSampler<T extends ConstrainedColorSampler>
     public boolean hasFixed(int component) {
         return minValueOf[component] == maxValueOf[component];
     }
+
+    /**
+     * Returns an immutable snapshot of the current constraints.
+     */
+    public ColorConstraints getConstraints() {
+        return new ColorConstraints(minValueOf, maxValueOf);
+    }
+
+    public T setConstraints(ColorConstraints constraints) {
+        setHueRange(constraints.getMin(H), constraints.getMax(H));
+        setSaturationRange(constraints.getMin(S), constraints.getMax(S));
+        return setBrightnessRange(constraints.getMin(B), constraints.getMax(B));
+    }
+
+    /**
+     * Restarts the sequence of colors (and of forks) from the given seed.
+     */
+    public T setSeed(long seed) {
+        this.seed = seed;
+        this.forkCount = 0;
+        onSeedChanged(seed);
+        return (T) this;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Called when the seed changes: subclasses must restart their random sequence from it.
+     */
+    protected abstract void onSeedChanged(long seed);
+
+    /**
+     * Creates a sampler of the same kind and with the same settings, except for the constraints
+     * and the seed, which are set by fork.
+     */
+    protected abstract T newInstance();
+
+    @Override
+    public T fork() {
+        T fork = newInstance();
+        fork.setConstraints(getConstraints());
+        fork.setSeed(mix64(seed + GOLDEN_GAMMA * ++forkCount));
+        return fork;
+    }
+
+    // Finalizer of SplitMix64: consecutive inputs give statistically independent outputs
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 }
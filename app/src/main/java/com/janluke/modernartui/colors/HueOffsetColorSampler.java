@@ -1,7 +1,5 @@
 package com.janluke.modernartui.colors;
 
-import android.graphics.Color;
-
 import com.janluke.modernartui.Util;
 
 import java.util.Random;
@@ -21,7 +19,7 @@ public class HueOffsetColorSampler extends ConstrainedColorSampler<HueOffsetColo
 
     protected float relativeOffset;
     protected float offset;
-    protected Random random = new Random();
+    protected Random random = new Random(getSeed());
     private float[] color = {0f, 0f, 0f};
 
     /**
@@ -48,6 +46,17 @@ public class HueOffsetColorSampler extends ConstrainedColorSampler<HueOffsetColo
         return this;
     }
 
+    @Override
+    protected void onSeedChanged(long seed) {
+        random.setSeed(seed);
+        color[H] = Math.min(maxValueOf[H], random.nextFloat() * HUE_LIMIT);
+    }
+
+    @Override
+    protected HueOffsetColorSampler newInstance() {
+        return new HueOffsetColorSampler(relativeOffset);
+    }
+
     public HueOffsetColorSampler startFromHue(float initialHue) {
         Util.checkArg(0 <= initialHue && initialHue <= HUE_LIMIT, "illegal initialHue");
         color[H] = initialHue;
@@ -70,6 +79,6 @@ public class HueOffsetColorSampler extends ConstrainedColorSampler<HueOffsetColo
         color[H] = nextHue();
         color[S] = sampleComponent(S);
         color[B] = sampleComponent(B);
-        return Color.HSVToColor(color);
+        return ColorSpaces.hsbToColor(color);
     }
 }
@@ -0,0 +1,200 @@
+package com.janluke.modernartui.colors;
+
+import com.janluke.modernartui.Util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Base class of samplers that pick colors from a precomputed palette.
+ *
+ * The palette holds paletteSize colors satisfying the HSB constraints and spread as much as
+ * possible in CIELAB, where the euclidean distance roughly matches the perceived difference:
+ * a stratified grid of candidates is taken from the constrained HSB box, then colors are picked
+ * one at a time, each being the candidate farthest from the ones already picked (max-min
+ * distance). Thus, any prefix of the palette is itself well spread.
+ *
+ * The palette is rebuilt lazily, only on the first sample after a constraint change, and it's
+ * shared through a small cache keyed by the constraints, so going back and forth between a few
+ * settings (e.g. moving the saturation slider) doesn't recompute it. Sampling is then just an
+ * index into an int table.
+ */
+public abstract class PaletteColorSampler<T extends PaletteColorSampler>
+        extends ConstrainedColorSampler<T> {
+
+    public static final int DEFAULT_PALETTE_SIZE = 32;
+
+    // Number of candidate values along each non-fixed HSB component
+    static final int HUE_STEPS = 36;
+    static final int SATURATION_STEPS = 6;
+    static final int BRIGHTNESS_STEPS = 6;
+
+    static final int MAX_CACHED_PALETTES = 16;
+
+    private static final Map<PaletteKey, int[]> paletteCache =
+            new LinkedHashMap<PaletteKey, int[]>(MAX_CACHED_PALETTES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PaletteKey, int[]> eldest) {
+                    return size() > MAX_CACHED_PALETTES;
+                }
+            };
+
+    protected final int paletteSize;
+    private int[] palette;
+
+    protected PaletteColorSampler(int paletteSize) {
+        Util.checkArg(paletteSize > 0, "illegal paletteSize");
+        this.paletteSize = paletteSize;
+    }
+
+    @Override
+    protected void onConstraintsChanged() {
+        invalidatePalette();
+    }
+
+    /**
+     * Makes the next sample fetch the palette again (from the cache, if possible) and call
+     * onPaletteChanged.
+     */
+    protected void invalidatePalette() {
+        palette = null;
+    }
+
+    /**
+     * Returns the palette for the current constraints, building it if needed.
+     */
+    protected int[] palette() {
+        if (palette == null) {
+            palette = getPalette(minValueOf, maxValueOf, paletteSize);
+            onPaletteChanged(palette);
+        }
+        return palette;
+    }
+
+    /**
+     * Called when a new palette is going to be used.
+     */
+    protected void onPaletteChanged(int[] palette) {
+    }
+
+    // --- Palette cache and construction
+
+    static int[] getPalette(float[] min, float[] max, int size) {
+        PaletteKey key = new PaletteKey(min, max, size);
+        synchronized (paletteCache) {
+            int[] cached = paletteCache.get(key);
+            if (cached != null)
+                return cached;
+        }
+        int[] built = buildPalette(min, max, size);
+        synchronized (paletteCache) {
+            paletteCache.put(key, built);
+        }
+        return built;
+    }
+
+    public static void clearPaletteCache() {
+        synchronized (paletteCache) {
+            paletteCache.clear();
+        }
+    }
+
+    static int[] buildPalette(float[] min, float[] max, int size) {
+        int[] candidates = buildCandidates(min, max);
+        int numCandidates = candidates.length;
+        float[][] labs = new float[numCandidates][3];
+        for (int i = 0; i < numCandidates; i++)
+            ColorSpaces.colorToLab(candidates[i], labs[i]);
+
+        // Start from the candidate farthest from the centroid, then add farthest points
+        float[] centroid = new float[3];
+        for (float[] lab : labs)
+            for (int c = 0; c < 3; c++)
+                centroid[c] += lab[c] / numCandidates;
+
+        float[] minDistance = new float[numCandidates];
+        int next = 0;
+        for (int i = 0; i < numCandidates; i++) {
+            minDistance[i] = ColorSpaces.labDistanceSquared(labs[i], centroid);
+            if (minDistance[i] > minDistance[next])
+                next = i;
+        }
+        Arrays.fill(minDistance, Float.MAX_VALUE);
+
+        int[] palette = new int[size];
+        for (int k = 0; k < size; k++) {
+            palette[k] = candidates[next];
+            float[] picked = labs[next];
+            int farthest = next;
+            float farthestDistance = -1f;
+            for (int i = 0; i < numCandidates; i++) {
+                float distance = ColorSpaces.labDistanceSquared(labs[i], picked);
+                if (distance < minDistance[i])
+                    minDistance[i] = distance;
+                if (minDistance[i] > farthestDistance) {
+                    farthestDistance = minDistance[i];
+                    farthest = i;
+                }
+            }
+            // When there are fewer distinct candidates than palette slots, colors repeat
+            next = farthest;
+        }
+        return palette;
+    }
+
+    private static int[] buildCandidates(float[] min, float[] max) {
+        int hueSteps = steps(min[H], max[H], HUE_STEPS);
+        int saturationSteps = steps(min[S], max[S], SATURATION_STEPS);
+        int brightnessSteps = steps(min[B], max[B], BRIGHTNESS_STEPS);
+
+        int[] candidates = new int[hueSteps * saturationSteps * brightnessSteps];
+        int n = 0;
+        for (int h = 0; h < hueSteps; h++) {
+            float hue = gridValue(min[H], max[H], h, hueSteps);
+            for (int s = 0; s < saturationSteps; s++) {
+                float saturation = gridValue(min[S], max[S], s, saturationSteps);
+                for (int b = 0; b < brightnessSteps; b++) {
+                    float brightness = gridValue(min[B], max[B], b, brightnessSteps);
+                    candidates[n++] = ColorSpaces.hsbToColor(hue, saturation, brightness);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static int steps(float min, float max, int steps) {
+        return (min == max) ? 1 : steps;
+    }
+
+    // Center of the i-th of n cells dividing [min, max]
+    private static float gridValue(float min, float max, int i, int n) {
+        return min + (max - min) * (i + 0.5f) / n;
+    }
+
+    static class PaletteKey {
+        private final float[] bounds;
+        private final int size;
+        private final int hash;
+
+        PaletteKey(float[] min, float[] max, int size) {
+            this.bounds = new float[] {min[H], min[S], min[B], max[H], max[S], max[B]};
+            this.size = size;
+            this.hash = 31 * Arrays.hashCode(bounds) + size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PaletteKey))
+                return false;
+            PaletteKey other = (PaletteKey) o;
+            return size == other.size && Arrays.equals(bounds, other.bounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.janluke.modernartui.colors;
+
+import java.util.Random;
+
+
+/**
+ * Walks a perceptually spread palette (see PaletteColorSampler) in the order its colors were
+ * picked: each color is the farthest from all the previous ones, so consecutive colors are
+ * always clearly different. It's the CIELAB counterpart of HueOffsetColorSampler.
+ *
+ * Every time the palette changes, the walk restarts from a random position, so that artworks
+ * don't always start with the same colors.
+ */
+public class SpreadPaletteColorSampler extends PaletteColorSampler<SpreadPaletteColorSampler> {
+
+    private Random random = new Random(getSeed());
+    private int next;
+
+    public SpreadPaletteColorSampler(int paletteSize) {
+        super(paletteSize);
+    }
+
+    public SpreadPaletteColorSampler() {
+        this(DEFAULT_PALETTE_SIZE);
+    }
+
+    @Override
+    protected void onSeedChanged(long seed) {
+        random.setSeed(seed);
+        // Pick the start of the walk again
+        invalidatePalette();
+    }
+
+    @Override
+    protected SpreadPaletteColorSampler newInstance() {
+        return new SpreadPaletteColorSampler(paletteSize);
+    }
+
+    @Override
+    protected void onPaletteChanged(int[] palette) {
+        next = random.nextInt(palette.length);
+    }
+
+    @Override
+    public int nextColor() {
+        int[] palette = palette();
+        int color = palette[next];
+        next = (next + 1 == palette.length) ? 0 : next + 1;
+        return color;
+    }
+}
@@ -1,8 +1,6 @@
 package com.janluke.modernartui.colors;
 
 
-import android.graphics.Color;
-
 import com.janluke.modernartui.Util;
 
 import java.util.Random;
@@ -10,18 +8,28 @@ import java.util.Random;
 
 public class UniformColorSampler extends ConstrainedColorSampler<UniformColorSampler> {
 
-    private Random random = new Random();
+    private Random random = new Random(getSeed());
     private float[] hsb = {0f, 0f, 0f};
 
     private float sampleComponent(int c) {
         return (hasFixed(c)) ? minValueOf[c] : Util.randFloat(random, minValueOf[c], maxValueOf[c]);
     }
 
+    @Override
+    protected void onSeedChanged(long seed) {
+        random.setSeed(seed);
+    }
+
+    @Override
+    protected UniformColorSampler newInstance() {
+        return new UniformColorSampler();
+    }
+
     @Override
     public int nextColor() {
         hsb[H] = sampleComponent(H);
         hsb[S] = sampleComponent(S);
         hsb[B] = sampleComponent(B);
-        return Color.HSVToColor(hsb);
+        return ColorSpaces.hsbToColor(hsb);
     }
 }
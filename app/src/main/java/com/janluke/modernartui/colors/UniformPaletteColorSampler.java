@@ -0,0 +1,46 @@
+package com.janluke.modernartui.colors;
+
+
+/**
+ * Samples colors uniformly at random from a perceptually spread palette (see
+ * PaletteColorSampler).
+ */
+public class UniformPaletteColorSampler extends PaletteColorSampler<UniformPaletteColorSampler> {
+
+    private int state;      // xorshift state, never 0
+
+    public UniformPaletteColorSampler(int paletteSize, long seed) {
+        super(paletteSize);
+        setSeed(seed);
+    }
+
+    public UniformPaletteColorSampler(int paletteSize) {
+        super(paletteSize);
+        onSeedChanged(getSeed());
+    }
+
+    public UniformPaletteColorSampler() {
+        this(DEFAULT_PALETTE_SIZE);
+    }
+
+    @Override
+    protected void onSeedChanged(long seed) {
+        state = (int) (seed ^ (seed >>> 32));
+        if (state == 0)
+            state = 0x9E3779B9;
+    }
+
+    @Override
+    protected UniformPaletteColorSampler newInstance() {
+        return new UniformPaletteColorSampler(paletteSize);
+    }
+
+    @Override
+    public int nextColor() {
+        int[] palette = palette();
+        state ^= state << 13;
+        state ^= state >>> 17;
+        state ^= state << 5;
+        return palette[(int) ((state & 0xFFFFFFFFL) % palette.length)];
+    }
+}
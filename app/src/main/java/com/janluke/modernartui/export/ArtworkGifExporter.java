@@ -0,0 +1,313 @@
+package com.janluke.modernartui.export;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileRasterizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Exports a sequence of colorings of an artwork (e.g. successive recolors or hue rotations) as an
+ * animated GIF.
+ *
+ * All the frames share the geometry of the artwork, so it's rasterized only once, into a map
+ * from pixels to tiles, and a frame is just the array of the colors of the tiles. This allows to:
+ *  - build one global color table with the colors of all the frames (quantized to a uniform
+ *    color cube when they are more than 255);
+ *  - encode each frame after the first one as the bounding box of the tiles whose color changed,
+ *    where the pixels of the unchanged tiles and of the strokes are transparent, so that they
+ *    compress to almost nothing;
+ *  - LZW-compress the frames independently, on worker threads, while the ones already
+ *    compressed are written to the output in order.
+ */
+public class ArtworkGifExporter {
+
+    public static final int DEFAULT_FRAME_DELAY_MILLIS = 500;
+
+    // Uniform color cube used when the frames have too many colors
+    static final int CUBE_RED_LEVELS = 6;
+    static final int CUBE_GREEN_LEVELS = 7;
+    static final int CUBE_BLUE_LEVELS = 6;
+
+    static final int NO_TILE = -1;
+
+    private final ArtworkModel model;
+    private final int width;
+    private final int height;
+    private final int strokeColor;
+
+    // Visible tiles: their nodes in the model, rectangles and pixels
+    private final int[] tileNodes;
+    private final int[] tileBounds;     // left, top, right, bottom of each tile
+    private final int[] pixelTiles;     // tile of each pixel, or NO_TILE for strokes
+
+    private final List<int[]> frameColors = new ArrayList<>();
+    private final List<Integer> frameDelays = new ArrayList<>();
+    private int loopCount = GifWriter.LOOP_FOREVER;
+
+    /**
+     * @param model       the artwork; its shape and visibility must not change afterwards
+     * @param strokeWidth width in pixels of the strokes between the tiles
+     */
+    public ArtworkGifExporter(ArtworkModel model, int width, int height, float strokeWidth,
+                              int strokeColor) {
+        Util.checkArg(width > 0 && height > 0, "illegal size");
+        this.model = model;
+        this.width = width;
+        this.height = height;
+        this.strokeColor = strokeColor;
+
+        TileRasterizer rasterizer = new TileRasterizer();
+        rasterizer.layout(model, width, height, strokeWidth);
+        int numTiles = model.countVisibleLeaves();
+        tileNodes = new int[numTiles];
+        tileBounds = new int[4 * numTiles];
+        pixelTiles = new int[width * height];
+        Arrays.fill(pixelTiles, NO_TILE);
+        int[] count = {0};
+        rasterizer.forEachVisibleLeaf(model, (node, left, top, right, bottom) -> {
+            int tile = count[0]++;
+            tileNodes[tile] = node;
+            left = Math.max(0, left);
+            top = Math.max(0, top);
+            right = Math.min(width, right);
+            bottom = Math.min(height, bottom);
+            tileBounds[4 * tile] = left;
+            tileBounds[4 * tile + 1] = top;
+            tileBounds[4 * tile + 2] = right;
+            tileBounds[4 * tile + 3] = bottom;
+            for (int y = top; y < bottom; y++)
+                Arrays.fill(pixelTiles, y * width + left, y * width + right, tile);
+        });
+    }
+
+    /**
+     * Adds a frame with the current colors of the model.
+     */
+    public void addFrame(int delayMillis) {
+        int[] colors = new int[tileNodes.length];
+        for (int tile = 0; tile < colors.length; tile++)
+            colors[tile] = model.getColor(tileNodes[tile]);
+        frameColors.add(colors);
+        frameDelays.add(delayMillis);
+    }
+
+    public int numFrames() {
+        return frameColors.size();
+    }
+
+    /**
+     * @param loopCount number of repetitions of the animation, or 0 to loop forever
+     */
+    public void setLoopCount(int loopCount) {
+        this.loopCount = loopCount;
+    }
+
+    /**
+     * Encodes the frames added so far and writes the GIF.
+     * @param executor where the frames are compressed
+     */
+    public void write(OutputStream out, ExecutorService executor) throws IOException {
+        Util.checkArg(!frameColors.isEmpty(), "no frames to export");
+        Palette palette = buildPalette();
+        int minCodeSize = Math.max(2, GifWriter.colorBits(palette.numColors));
+
+        // Map the colors of each frame to indexes once, then diff consecutive frames
+        int numFrames = frameColors.size();
+        byte[][] frameIndexes = new byte[numFrames][];
+        for (int f = 0; f < numFrames; f++) {
+            int[] colors = frameColors.get(f);
+            byte[] indexes = new byte[colors.length];
+            for (int tile = 0; tile < colors.length; tile++)
+                indexes[tile] = (byte) palette.indexOf(colors[tile]);
+            frameIndexes[f] = indexes;
+        }
+
+        List<Future<Frame>> frames = new ArrayList<>(numFrames);
+        for (int f = 0; f < numFrames; f++) {
+            byte[] previous = (f == 0) ? null : frameIndexes[f - 1];
+            byte[] current = frameIndexes[f];
+            int delay = frameDelays.get(f);
+            frames.add(executor.submit(() ->
+                    encodeFrame(previous, current, delay, palette, minCodeSize)));
+        }
+
+        GifWriter writer = new GifWriter(out);
+        writer.writeHeader(width, height, palette.colors, palette.numColors, loopCount);
+        Frame last = null;
+        for (Future<Frame> future : frames) {
+            Frame frame;
+            try {
+                frame = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while encoding the frames", e);
+            } catch (ExecutionException e) {
+                throw new IOException("unable to encode a frame", e.getCause());
+            }
+            if (frame.imageData == null) {
+                // Nothing changed: show the previous frame longer
+                last.delayMillis += frame.delayMillis;
+                continue;
+            }
+            if (last != null)
+                writeFrame(writer, last, palette);
+            last = frame;
+        }
+        writeFrame(writer, last, palette);
+        writer.writeTrailer();
+    }
+
+    private static void writeFrame(GifWriter writer, Frame frame, Palette palette)
+            throws IOException {
+        writer.writeFrame(frame.left, frame.top, frame.right - frame.left,
+                frame.bottom - frame.top, frame.delayMillis,
+                frame.isFull ? -1 : palette.transparentIndex, frame.imageData);
+    }
+
+    /**
+     * Compresses the part of the frame that differs from the previous one (the whole frame for
+     * the first one). Runs on the worker threads.
+     */
+    private Frame encodeFrame(byte[] previous, byte[] current, int delayMillis, Palette palette,
+                              int minCodeSize) {
+        Frame frame = new Frame(delayMillis);
+        boolean[] changed = new boolean[current.length];
+        if (previous == null) {
+            Arrays.fill(changed, true);
+            frame.isFull = true;
+            frame.left = 0;
+            frame.top = 0;
+            frame.right = width;
+            frame.bottom = height;
+        } else {
+            frame.left = width;
+            frame.top = height;
+            for (int tile = 0; tile < current.length; tile++) {
+                if (current[tile] == previous[tile])
+                    continue;
+                changed[tile] = true;
+                frame.left = Math.min(frame.left, tileBounds[4 * tile]);
+                frame.top = Math.min(frame.top, tileBounds[4 * tile + 1]);
+                frame.right = Math.max(frame.right, tileBounds[4 * tile + 2]);
+                frame.bottom = Math.max(frame.bottom, tileBounds[4 * tile + 3]);
+            }
+            if (frame.right <= frame.left || frame.bottom <= frame.top)
+                return frame;
+        }
+
+        int frameWidth = frame.right - frame.left;
+        int frameHeight = frame.bottom - frame.top;
+        byte transparent = (byte) palette.transparentIndex;
+        byte stroke = frame.isFull ? (byte) palette.indexOf(strokeColor) : transparent;
+        byte[] pixels = new byte[frameWidth * frameHeight];
+        int n = 0;
+        for (int y = frame.top; y < frame.bottom; y++) {
+            int row = y * width;
+            for (int x = frame.left; x < frame.right; x++) {
+                int tile = pixelTiles[row + x];
+                pixels[n++] = (tile == NO_TILE)
+                        ? stroke
+                        : changed[tile] ? current[tile] : transparent;
+            }
+        }
+        frame.imageData = new LzwEncoder().encode(pixels, 0, pixels.length, minCodeSize);
+        return frame;
+    }
+
+    /**
+     * Builds the global color table: the exact colors of all the frames and of the strokes if
+     * they fit, the color cube otherwise. One more entry is reserved for transparency.
+     */
+    private Palette buildPalette() {
+        int total = 1;
+        for (int[] colors : frameColors)
+            total += colors.length;
+        int[] all = new int[total];
+        int n = 0;
+        all[n++] = strokeColor | 0xFF000000;
+        for (int[] colors : frameColors) {
+            for (int color : colors)
+                all[n++] = color | 0xFF000000;
+        }
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1])
+                all[distinct++] = all[i];
+        }
+
+        if (distinct < GifWriter.MAX_COLORS)
+            return new Palette(Arrays.copyOf(all, distinct), distinct, false);
+
+        int cubeSize = CUBE_RED_LEVELS * CUBE_GREEN_LEVELS * CUBE_BLUE_LEVELS;
+        int[] cube = new int[cubeSize];
+        for (int r = 0; r < CUBE_RED_LEVELS; r++)
+            for (int g = 0; g < CUBE_GREEN_LEVELS; g++)
+                for (int b = 0; b < CUBE_BLUE_LEVELS; b++)
+                    cube[cubeIndex(r, g, b)] = 0xFF000000
+                            | (level(r, CUBE_RED_LEVELS) << 16)
+                            | (level(g, CUBE_GREEN_LEVELS) << 8)
+                            | level(b, CUBE_BLUE_LEVELS);
+        return new Palette(cube, cubeSize, true);
+    }
+
+    private static int cubeIndex(int r, int g, int b) {
+        return (r * CUBE_GREEN_LEVELS + g) * CUBE_BLUE_LEVELS + b;
+    }
+
+    // Value of the i-th of n levels of a channel
+    private static int level(int i, int n) {
+        return Math.round(255f * i / (n - 1));
+    }
+
+    // Nearest level of a channel value
+    private static int nearestLevel(int value, int n) {
+        return (value * (n - 1) + 127) / 255;
+    }
+
+    private static class Palette {
+        final int[] colors;         // sorted, unless it's the cube
+        final int numColors;
+        final int transparentIndex;
+        final boolean isCube;
+
+        Palette(int[] colors, int numColors, boolean isCube) {
+            this.colors = Arrays.copyOf(colors, numColors + 1);
+            this.numColors = numColors + 1;
+            this.transparentIndex = numColors;
+            this.isCube = isCube;
+        }
+
+        int indexOf(int color) {
+            color |= 0xFF000000;
+            if (!isCube)
+                return Arrays.binarySearch(colors, 0, transparentIndex, color);
+            return cubeIndex(nearestLevel((color >> 16) & 0xFF, CUBE_RED_LEVELS),
+                    nearestLevel((color >> 8) & 0xFF, CUBE_GREEN_LEVELS),
+                    nearestLevel(color & 0xFF, CUBE_BLUE_LEVELS));
+        }
+    }
+
+    private static class Frame {
+        int left;
+        int top;
+        int right;
+        int bottom;
+        int delayMillis;
+        boolean isFull;
+        byte[] imageData;       // null if nothing changed
+
+        Frame(int delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+    }
+}
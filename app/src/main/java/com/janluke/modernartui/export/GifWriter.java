@@ -0,0 +1,112 @@
+package com.janluke.modernartui.export;
+
+import com.janluke.modernartui.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Writes an animated GIF (GIF89a) to a stream, one block at a time: the header with the global
+ * color table, then the frames, then the trailer. Frames are sub-rectangles of the canvas whose
+ * image data was already LZW-compressed (see LzwEncoder), so the compression can happen
+ * elsewhere, e.g. on worker threads.
+ */
+class GifWriter {
+
+    static final int MAX_COLORS = 256;
+    static final int LOOP_FOREVER = 0;
+
+    // Graphic control extension: keep the previous frame under this one
+    static final int DISPOSAL_DO_NOT_DISPOSE = 1;
+
+    private final OutputStream out;
+    private final byte[] shortBuffer = new byte[2];
+
+    GifWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Number of bits of the color indexes for a table of numColors colors (at least 1).
+     */
+    static int colorBits(int numColors) {
+        int bits = 1;
+        while ((1 << bits) < numColors)
+            bits++;
+        return bits;
+    }
+
+    /**
+     * Writes the header, the global color table (padded to a power of two) and the looping
+     * extension.
+     * @param palette   colors of the global table, as 0xAARRGGBB (alpha is ignored)
+     * @param loopCount number of repetitions, or LOOP_FOREVER
+     */
+    void writeHeader(int width, int height, int[] palette, int numColors, int loopCount)
+            throws IOException {
+        Util.checkArg(numColors > 0 && numColors <= MAX_COLORS, "illegal numColors");
+        out.write(new byte[] {'G', 'I', 'F', '8', '9', 'a'});
+
+        // Logical screen descriptor, with a global color table
+        int bits = colorBits(numColors);
+        writeShort(width);
+        writeShort(height);
+        out.write(0x80 | ((bits - 1) << 4) | (bits - 1));
+        out.write(0);       // background color index
+        out.write(0);       // pixel aspect ratio
+
+        byte[] table = new byte[3 << bits];
+        for (int i = 0; i < numColors; i++) {
+            table[3 * i] = (byte) (palette[i] >> 16);
+            table[3 * i + 1] = (byte) (palette[i] >> 8);
+            table[3 * i + 2] = (byte) palette[i];
+        }
+        out.write(table);
+
+        // NETSCAPE2.0 application extension
+        out.write(new byte[] {0x21, (byte) 0xFF, 11,
+                'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1});
+        writeShort(loopCount);
+        out.write(0);
+    }
+
+    /**
+     * Writes a frame drawn over the previous ones.
+     * @param delayMillis      time the frame is shown (GIF has a resolution of 10 ms)
+     * @param transparentIndex index of the color table that leaves the pixel unchanged, or -1
+     * @param imageData        LZW-compressed indexes of the frame (see LzwEncoder.encode)
+     */
+    void writeFrame(int left, int top, int width, int height, int delayMillis,
+                    int transparentIndex, byte[] imageData) throws IOException {
+        // Graphic control extension
+        out.write(0x21);
+        out.write(0xF9);
+        out.write(4);
+        out.write((DISPOSAL_DO_NOT_DISPOSE << 2) | (transparentIndex >= 0 ? 1 : 0));
+        writeShort(Math.round(delayMillis / 10f));
+        out.write(Math.max(0, transparentIndex));
+        out.write(0);
+
+        // Image descriptor, without a local color table
+        out.write(0x2C);
+        writeShort(left);
+        writeShort(top);
+        writeShort(width);
+        writeShort(height);
+        out.write(0);
+
+        out.write(imageData);
+    }
+
+    void writeTrailer() throws IOException {
+        out.write(0x3B);
+        out.flush();
+    }
+
+    private void writeShort(int value) throws IOException {
+        shortBuffer[0] = (byte) value;
+        shortBuffer[1] = (byte) (value >> 8);
+        out.write(shortBuffer);
+    }
+}
@@ -0,0 +1,127 @@
+package com.janluke.modernartui.export;
+
+import java.util.Arrays;
+
+
+/**
+ * Variable-length-code LZW compression of color indexes, as required by the GIF format.
+ *
+ * The output is the whole image data block of a GIF frame: the minimum code size, the codes
+ * packed LSB-first in sub-blocks of at most 255 bytes, and the block terminator. The string
+ * table is an open-addressing hash from (prefix code, next index) to code, so no objects are
+ * allocated per string. Instances are not thread-safe, but they are cheap: use one per thread.
+ */
+class LzwEncoder {
+
+    static final int MAX_CODE_SIZE = 12;
+    static final int MAX_CODES = 1 << MAX_CODE_SIZE;
+    static final int MAX_SUB_BLOCK_SIZE = 255;
+
+    // Twice the maximum number of strings, so that probe sequences stay short
+    private static final int HASH_BITS = MAX_CODE_SIZE + 1;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int HASH_MASK = HASH_SIZE - 1;
+
+    private final int[] hashKeys = new int[HASH_SIZE];
+    private final int[] hashCodes = new int[HASH_SIZE];
+
+    // Packed codes, before being split into sub-blocks
+    private byte[] packed = new byte[1024];
+    private int packedSize;
+    private int bitBuffer;
+    private int bitCount;
+
+    /**
+     * Compresses length indexes starting at offset.
+     * @param minCodeSize number of bits of the color indexes (at least 2)
+     */
+    byte[] encode(byte[] indexes, int offset, int length, int minCodeSize) {
+        int clearCode = 1 << minCodeSize;
+        int endCode = clearCode + 1;
+        packedSize = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        int codeSize = minCodeSize + 1;
+        int nextCode = clearCode + 2;
+        clearTable();
+        write(clearCode, codeSize);
+
+        int prefix = indexes[offset] & 0xFF;
+        for (int i = offset + 1; i < offset + length; i++) {
+            int index = indexes[i] & 0xFF;
+            int key = (prefix << 8) | index;
+            int slot = find(key);
+            if (hashKeys[slot] == key) {
+                prefix = hashCodes[slot];
+                continue;
+            }
+
+            write(prefix, codeSize);
+            if (nextCode > (1 << codeSize) - 1 && codeSize < MAX_CODE_SIZE)
+                codeSize++;
+            if (nextCode < MAX_CODES) {
+                hashKeys[slot] = key;
+                hashCodes[slot] = nextCode++;
+            } else {
+                // Table full: start again with single indexes
+                write(clearCode, codeSize);
+                clearTable();
+                codeSize = minCodeSize + 1;
+                nextCode = clearCode + 2;
+            }
+            prefix = index;
+        }
+        write(prefix, codeSize);
+        if (nextCode > (1 << codeSize) - 1 && codeSize < MAX_CODE_SIZE)
+            codeSize++;
+        write(endCode, codeSize);
+        if (bitCount > 0)
+            writeByte(bitBuffer & 0xFF);
+
+        return toSubBlocks(minCodeSize);
+    }
+
+    private void clearTable() {
+        Arrays.fill(hashKeys, -1);
+    }
+
+    // Slot holding the key, or the empty slot where it should go
+    private int find(int key) {
+        int slot = (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+        while (hashKeys[slot] != -1 && hashKeys[slot] != key)
+            slot = (slot + 1) & HASH_MASK;
+        return slot;
+    }
+
+    private void write(int code, int codeSize) {
+        bitBuffer |= code << bitCount;
+        bitCount += codeSize;
+        while (bitCount >= 8) {
+            writeByte(bitBuffer & 0xFF);
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private void writeByte(int b) {
+        if (packedSize == packed.length)
+            packed = Arrays.copyOf(packed, 2 * packedSize);
+        packed[packedSize++] = (byte) b;
+    }
+
+    private byte[] toSubBlocks(int minCodeSize) {
+        int numBlocks = (packedSize + MAX_SUB_BLOCK_SIZE - 1) / MAX_SUB_BLOCK_SIZE;
+        byte[] data = new byte[1 + numBlocks + packedSize + 1];
+        int n = 0;
+        data[n++] = (byte) minCodeSize;
+        for (int start = 0; start < packedSize; start += MAX_SUB_BLOCK_SIZE) {
+            int size = Math.min(MAX_SUB_BLOCK_SIZE, packedSize - start);
+            data[n++] = (byte) size;
+            System.arraycopy(packed, start, data, n, size);
+            n += size;
+        }
+        data[n] = 0;
+        return data;
+    }
+}
@@ -0,0 +1,21 @@
+package com.janluke.modernartui.fill;
+
+
+/**
+ * How a tile is painted with its color.
+ */
+public enum FillStyle {
+    FLAT,
+    LINEAR_GRADIENT,    // diagonal, from a lighter to a darker shade of the color
+    RADIAL_GRADIENT,    // lighter at the center
+    HATCHING,           // diagonal lines over the color
+    NOISE;              // grain over the color
+
+    public boolean isGradient() {
+        return this == LINEAR_GRADIENT || this == RADIAL_GRADIENT;
+    }
+
+    public boolean isPattern() {
+        return this == HATCHING || this == NOISE;
+    }
+}
@@ -0,0 +1,116 @@
+package com.janluke.modernartui.fill;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.graphics.drawable.Drawable;
+
+
+/**
+ * Background of a styled tile. It keeps the shader of its style and color, taken from the shared
+ * TileShaderCache when either changes, so drawing doesn't look anything up nor allocate.
+ *
+ * Gradients are defined on the unit square and scaled to the bounds, so that one shader fits
+ * tiles of any size. Patterns are tiled at their own scale over the flat color.
+ */
+public class TileDrawable extends Drawable {
+
+    private final TileShaderCache cache;
+    private FillStyle style = FillStyle.FLAT;
+    private int color;
+    private Shader shader;
+    // Showing an intermediate color of a transition, without a shader of its own
+    private boolean inTransition;
+
+    public TileDrawable(TileShaderCache cache) {
+        this.cache = cache;
+    }
+
+    public TileShaderCache getCache() {
+        return cache;
+    }
+
+    public void setStyle(FillStyle style) {
+        if (this.style == style)
+            return;
+        this.style = style;
+        updateShader();
+    }
+
+    public void setColor(int color) {
+        if (this.color == color && !inTransition)
+            return;
+        this.color = color;
+        inTransition = false;
+        // Patterns don't depend on the color
+        if (style.isGradient())
+            updateShader();
+        else
+            invalidateSelf();
+    }
+
+    /**
+     * Shows an intermediate color of a color transition. Gradients are then drawn as the flat
+     * color under a shader shared by all the colors, so that the frames don't look up (and
+     * create) a shader per tile. setColor ends the transition.
+     */
+    public void setTransitionColor(int color) {
+        this.color = color;
+        inTransition = true;
+        invalidateSelf();
+    }
+
+    private void updateShader() {
+        shader = cache.getShader(style, color);
+        invalidateSelf();
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        if (bounds.isEmpty())
+            return;
+        Paint paint = cache.getPaint();
+        if (style.isGradient()) {
+            if (inTransition) {
+                paint.setShader(null);
+                paint.setColor(color);
+                canvas.drawRect(bounds, paint);
+            }
+            paint.setShader(inTransition ? cache.getTransitionShader(style) : shader);
+            paint.setColor(0xFF000000);
+            canvas.save();
+            canvas.translate(bounds.left, bounds.top);
+            canvas.scale(bounds.width(), bounds.height());
+            canvas.drawRect(0f, 0f, 1f, 1f, paint);
+            canvas.restore();
+            return;
+        }
+
+        paint.setShader(null);
+        paint.setColor(color);
+        canvas.drawRect(bounds, paint);
+        if (shader != null) {
+            // Alpha-only pattern, drawn with the paint color
+            paint.setShader(shader);
+            paint.setColor(TileShaderCache.PATTERN_COLOR);
+            canvas.drawRect(bounds, paint);
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.OPAQUE;
+    }
+}
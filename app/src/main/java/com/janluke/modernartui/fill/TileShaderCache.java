@@ -0,0 +1,295 @@
+package com.janluke.modernartui.fill;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.RadialGradient;
+import android.graphics.Shader;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.colors.ColorSpaces;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Shaders of the styled tiles, shared by all the tiles (of all the artworks) with the same style
+ * and quantized color.
+ *
+ * Gradient shaders depend on the color, which is quantized to 5 bits per channel, so that the
+ * tiles of similar colors (e.g. during a color transition) share them; the least recently used
+ * ones are evicted when there are more than the capacity. The cache is an open-addressing hash
+ * from int keys, linked in LRU order by index arrays, so lookups don't allocate.
+ *
+ * Pattern shaders only carry the alpha of the pattern, which is drawn with a translucent color
+ * over the color of the tile, so there's one per style, and their bitmaps are generated once.
+ * Gradients have such a color-independent version too, drawn over the flat color while the
+ * color changes at every frame of a transition, which would otherwise flush the cache.
+ *
+ * Meant to be used on the UI thread only: the paint is shared by all the tiles too.
+ */
+public class TileShaderCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // Shades of the gradients, relative to the color of the tile
+    static final float GRADIENT_LIGHTER_BRIGHTNESS = .15f;
+    static final float GRADIENT_LIGHTER_SATURATION = -.1f;
+    static final float GRADIENT_DARKER_BRIGHTNESS = -.2f;
+    static final float RADIAL_GRADIENT_RADIUS = .75f;   // of the unit square
+
+    // Translucent white and black, which approximate the shades over any color
+    static final int TRANSITION_LIGHTER = Math.round(GRADIENT_LIGHTER_BRIGHTNESS * 255) << 24
+            | 0xFFFFFF;
+    static final int TRANSITION_DARKER = Math.round(-GRADIENT_DARKER_BRIGHTNESS * 255) << 24;
+
+    // Patterns: alpha masks drawn with PATTERN_COLOR
+    static final int PATTERN_COLOR = 0xFF000000;
+    static final int HATCHING_SIZE = 12;
+    static final int HATCHING_LINE_WIDTH = 2;
+    static final int HATCHING_ALPHA = 40;
+    static final int NOISE_SIZE = 64;
+    static final int NOISE_MAX_ALPHA = 28;
+    static final long NOISE_SEED = 0x5EEDL;
+
+    static final int QUANTIZATION_MASK = 0xF8F8F8;
+    static final int NO_ENTRY = -1;
+
+    private final int capacity;
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+    private final Shader[] patternShaders = new Shader[FillStyle.values().length];
+    private final Shader[] transitionShaders = new Shader[FillStyle.values().length];
+
+    // Entries, linked from the most to the least recently used
+    private final int[] entryKeys;
+    private final Shader[] entryShaders;
+    private final int[] previous;
+    private final int[] next;
+    private int head = NO_ENTRY;
+    private int tail = NO_ENTRY;
+    private int size;
+
+    // Hash table of entry indexes (NO_ENTRY if empty), with linear probing
+    private final int[] table;
+    private final int tableMask;
+    private final int tableShift;       // 32 - log2(table size)
+
+    public TileShaderCache(int capacity) {
+        Util.checkArg(capacity > 0, "illegal capacity");
+        this.capacity = capacity;
+        entryKeys = new int[capacity];
+        entryShaders = new Shader[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+        int tableSize = Integer.highestOneBit(2 * capacity - 1) << 1;
+        table = new int[tableSize];
+        tableMask = tableSize - 1;
+        tableShift = Integer.numberOfLeadingZeros(tableSize) + 1;
+        Arrays.fill(table, NO_ENTRY);
+    }
+
+    public TileShaderCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Paint used to draw all the tiles.
+     */
+    Paint getPaint() {
+        return paint;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the shader that paints a tile of the given style and color, or null for FLAT.
+     */
+    public Shader getShader(FillStyle style, int color) {
+        if (style == FillStyle.FLAT)
+            return null;
+        if (style.isPattern())
+            return getPatternShader(style);
+
+        int key = (style.ordinal() << 24) | (color & QUANTIZATION_MASK);
+        int slot = find(key);
+        int entry = table[slot];
+        if (entry != NO_ENTRY) {
+            moveToFront(entry);
+            return entryShaders[entry];
+        }
+
+        Shader shader = createGradient(style, dequantize(key));
+        if (size < capacity) {
+            entry = size++;
+        } else {
+            entry = tail;
+            unlink(entry);
+            remove(find(entryKeys[entry]));
+            slot = find(key);
+        }
+        entryKeys[entry] = key;
+        entryShaders[entry] = shader;
+        table[slot] = entry;
+        linkFirst(entry);
+        return shader;
+    }
+
+    /**
+     * Returns the shader drawn over the flat color of a gradient tile during a color transition,
+     * the same for all the colors, on the unit square like the gradients.
+     */
+    Shader getTransitionShader(FillStyle style) {
+        Shader shader = transitionShaders[style.ordinal()];
+        if (shader == null) {
+            shader = (style == FillStyle.RADIAL_GRADIENT)
+                    ? new RadialGradient(.5f, .5f, RADIAL_GRADIENT_RADIUS, TRANSITION_LIGHTER,
+                            TRANSITION_LIGHTER & 0xFFFFFF, Shader.TileMode.CLAMP)
+                    : new LinearGradient(0f, 0f, 1f, 1f, TRANSITION_LIGHTER, TRANSITION_DARKER,
+                            Shader.TileMode.CLAMP);
+            transitionShaders[style.ordinal()] = shader;
+        }
+        return shader;
+    }
+
+    public void clear() {
+        Arrays.fill(table, NO_ENTRY);
+        Arrays.fill(entryShaders, null);
+        head = NO_ENTRY;
+        tail = NO_ENTRY;
+        size = 0;
+    }
+
+    // Expands a quantized color to the full range, so that white stays white
+    private static int dequantize(int key) {
+        int color = key & QUANTIZATION_MASK;
+        return 0xFF000000 | color | ((color >> 5) & 0x070707);
+    }
+
+    private static Shader createGradient(FillStyle style, int color) {
+        float[] hsb = new float[3];
+        ColorSpaces.colorToHsb(color, hsb, 0);
+        int lighter = shade(hsb, GRADIENT_LIGHTER_SATURATION, GRADIENT_LIGHTER_BRIGHTNESS);
+        if (style == FillStyle.RADIAL_GRADIENT)
+            return new RadialGradient(.5f, .5f, RADIAL_GRADIENT_RADIUS, lighter, color,
+                    Shader.TileMode.CLAMP);
+        int darker = shade(hsb, 0f, GRADIENT_DARKER_BRIGHTNESS);
+        return new LinearGradient(0f, 0f, 1f, 1f, lighter, darker, Shader.TileMode.CLAMP);
+    }
+
+    private static int shade(float[] hsb, float saturationDelta, float brightnessDelta) {
+        return ColorSpaces.hsbToColor(hsb[0],
+                clamp(hsb[1] + saturationDelta),
+                clamp(hsb[2] + brightnessDelta));
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+
+    private Shader getPatternShader(FillStyle style) {
+        Shader shader = patternShaders[style.ordinal()];
+        if (shader == null) {
+            Bitmap pattern = (style == FillStyle.HATCHING) ? createHatching() : createNoise();
+            shader = new BitmapShader(pattern, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+            patternShaders[style.ordinal()] = shader;
+        }
+        return shader;
+    }
+
+    // Diagonal lines that join seamlessly when the bitmap is repeated
+    private static Bitmap createHatching() {
+        byte[] alphas = new byte[HATCHING_SIZE * HATCHING_SIZE];
+        for (int y = 0; y < HATCHING_SIZE; y++)
+            for (int x = 0; x < HATCHING_SIZE; x++)
+                if ((x + y) % HATCHING_SIZE < HATCHING_LINE_WIDTH)
+                    alphas[y * HATCHING_SIZE + x] = (byte) HATCHING_ALPHA;
+        return createAlphaBitmap(alphas, HATCHING_SIZE);
+    }
+
+    private static Bitmap createNoise() {
+        Random random = new Random(NOISE_SEED);
+        byte[] alphas = new byte[NOISE_SIZE * NOISE_SIZE];
+        for (int i = 0; i < alphas.length; i++)
+            alphas[i] = (byte) random.nextInt(NOISE_MAX_ALPHA + 1);
+        return createAlphaBitmap(alphas, NOISE_SIZE);
+    }
+
+    private static Bitmap createAlphaBitmap(byte[] alphas, int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(alphas));
+        return bitmap;
+    }
+
+    // --- Hash table
+
+    // Fibonacci hashing: the high bits of the product depend on all the bits of the key, while
+    // the low ones are always 0 for quantized colors
+    private int home(int key) {
+        return (key * 0x9E3779B1) >>> tableShift;
+    }
+
+    // Slot holding the key, or the empty slot where it should go
+    private int find(int key) {
+        int slot = home(key);
+        while (table[slot] != NO_ENTRY && entryKeys[table[slot]] != key)
+            slot = (slot + 1) & tableMask;
+        return slot;
+    }
+
+    // Empties a slot, moving back the entries of the probe sequences that go through it
+    private void remove(int slot) {
+        int hole = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & tableMask;
+            int entry = table[i];
+            if (entry == NO_ENTRY)
+                break;
+            int home = home(entryKeys[entry]);
+            // Move the entry if its home is not cyclically in (hole, i]
+            boolean inRange = (hole <= i) ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!inRange) {
+                table[hole] = entry;
+                hole = i;
+            }
+        }
+        table[hole] = NO_ENTRY;
+    }
+
+    // --- LRU list
+
+    private void moveToFront(int entry) {
+        if (entry == head)
+            return;
+        unlink(entry);
+        linkFirst(entry);
+    }
+
+    private void linkFirst(int entry) {
+        previous[entry] = NO_ENTRY;
+        next[entry] = head;
+        if (head != NO_ENTRY)
+            previous[head] = entry;
+        head = entry;
+        if (tail == NO_ENTRY)
+            tail = entry;
+    }
+
+    private void unlink(int entry) {
+        int before = previous[entry];
+        int after = next[entry];
+        if (before != NO_ENTRY)
+            next[before] = after;
+        else
+            head = after;
+        if (after != NO_ENTRY)
+            previous[after] = before;
+        else
+            tail = before;
+    }
+}
@@ -0,0 +1,319 @@
+package com.janluke.modernartui.history;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Persistent history of generated artworks. Each entry holds the compact description of an
+ * artwork (see ArtworkCodec) and a small pre-rendered thumbnail.
+ *
+ * Entries are stored in two files:
+ * - a data file, where descriptions and thumbnails are appended one after the other;
+ * - an index file of fixed-size records pointing into the data file.
+ * Reads go through a read-only memory mapping of the data file, so browsing the history doesn't
+ * copy whole records through the Java heap more than once.
+ *
+ * When the number of entries exceeds twice the capacity, the files are compacted keeping only
+ * the most recent entries.
+ *
+ * Reads, appends and compaction must all be made from the same (background) thread, while
+ * size(), get() and snapshot() can be called from any thread.
+ */
+public class ArtworkHistory {
+
+    static final String TAG = ArtworkHistory.class.getSimpleName();
+
+    static final String DATA_FILE_NAME = "history.dat";
+    static final String INDEX_FILE_NAME = "history.idx";
+
+    // Index record: data offset (long), timestamp (long), description length (int),
+    // thumbnail length (int), flags (int)
+    static final int INDEX_RECORD_SIZE = 28;
+
+    public static final int FLAG_SAVED = 1;
+
+    public static final int DEFAULT_CAPACITY = 300;
+
+    private final File directory;
+    private final int capacity;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private RandomAccessFile dataFile;
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer dataMap;     // covers the data file up to dataMapSize
+    private long dataMapSize;
+    private long nextEntryId;
+
+    /**
+     * A single record of the history. Only the offset can change, when the files are compacted;
+     * entries dropped by a compaction get a negative offset and can't be read anymore.
+     *
+     * The id is unique among the entries of this history instance (unlike the timestamp, which
+     * two quick appends can share), but it isn't stored in the files.
+     */
+    public static class Entry {
+        public final long id;
+        long offset;
+        public final long timestamp;
+        final int descriptionLength;
+        final int thumbnailLength;
+        public final int flags;
+
+        Entry(long id, long offset, long timestamp, int descriptionLength, int thumbnailLength,
+                int flags) {
+            this.id = id;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.descriptionLength = descriptionLength;
+            this.thumbnailLength = thumbnailLength;
+            this.flags = flags;
+        }
+
+        public boolean isSaved() {
+            return (flags & FLAG_SAVED) != 0;
+        }
+    }
+
+    public ArtworkHistory(File directory, int capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    public ArtworkHistory(File directory) {
+        this(directory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens (or creates) the history files and loads the index. If it fails, the history stays
+     * closed and the operations that need the files throw an IOException.
+     */
+    public void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("unable to create " + directory);
+        try {
+            dataFile = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+            indexFile = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw");
+            loadIndex();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public boolean isOpen() {
+        return dataFile != null && indexFile != null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!isOpen())
+            throw new IOException("the history is not open");
+    }
+
+    public void close() {
+        try {
+            if (dataFile != null)
+                dataFile.close();
+            if (indexFile != null)
+                indexFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error while closing the history files", e);
+        }
+        dataFile = null;
+        indexFile = null;
+        dataMap = null;
+    }
+
+    private void loadIndex() throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        long dataLength = dataFile.length();
+        // A partially written record (e.g. the app was killed while appending) is discarded
+        long numRecords = indexFile.length() / INDEX_RECORD_SIZE;
+        if (numRecords > 0) {
+            FileChannel channel = indexFile.getChannel();
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    numRecords * INDEX_RECORD_SIZE);
+            index.order(ByteOrder.BIG_ENDIAN);
+            for (int i = 0; i < numRecords; i++) {
+                Entry entry = new Entry(nextEntryId++, index.getLong(), index.getLong(),
+                        index.getInt(), index.getInt(), index.getInt());
+                if (entry.offset + entry.descriptionLength + entry.thumbnailLength > dataLength)
+                    break;
+                loaded.add(entry);
+            }
+        }
+        indexFile.setLength((long) loaded.size() * INDEX_RECORD_SIZE);
+        synchronized (entries) {
+            entries.clear();
+            entries.addAll(loaded);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @param position 0 is the most recent entry
+     */
+    public Entry get(int position) {
+        synchronized (entries) {
+            return entries.get(entries.size() - 1 - position);
+        }
+    }
+
+    /**
+     * Returns an immutable copy of the entries, the most recent first. Unlike size() and get(),
+     * it isn't affected by later appends and compactions.
+     */
+    public List<Entry> snapshot() {
+        List<Entry> copy;
+        synchronized (entries) {
+            copy = new ArrayList<>(entries);
+        }
+        Collections.reverse(copy);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * Appends a new entry. The thumbnail is stored compressed.
+     */
+    public Entry append(byte[] description, Bitmap thumbnail, int flags) throws IOException {
+        ByteArrayOutputStream thumbnailBytes = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.WEBP, 80, thumbnailBytes);
+        return append(description, thumbnailBytes.toByteArray(), flags);
+    }
+
+    Entry append(byte[] description, byte[] thumbnail, int flags) throws IOException {
+        checkOpen();
+        long offset = dataFile.length();
+        dataFile.seek(offset);
+        dataFile.write(description);
+        dataFile.write(thumbnail);
+
+        Entry entry = new Entry(nextEntryId++, offset, System.currentTimeMillis(),
+                description.length, thumbnail.length, flags);
+        int size = size();
+        writeIndexRecord(indexFile, (long) size * INDEX_RECORD_SIZE, entry);
+        synchronized (entries) {
+            entries.add(entry);
+        }
+
+        if (size + 1 > 2 * capacity)
+            compact();
+        return entry;
+    }
+
+    private static void writeIndexRecord(RandomAccessFile file, long position, Entry entry)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        record.putLong(entry.offset)
+                .putLong(entry.timestamp)
+                .putInt(entry.descriptionLength)
+                .putInt(entry.thumbnailLength)
+                .putInt(entry.flags);
+        file.seek(position);
+        file.write(record.array());
+    }
+
+    /**
+     * Returns a read-only view of the compact description of the entry, or null if the entry was
+     * dropped. The view is valid only until the next compaction.
+     */
+    public ByteBuffer readDescription(Entry entry) throws IOException {
+        if (entry.offset < 0)
+            return null;
+        return slice(entry.offset, entry.descriptionLength);
+    }
+
+    /**
+     * Returns the decoded thumbnail of the entry, or null if the entry was dropped.
+     */
+    public Bitmap readThumbnail(Entry entry) throws IOException {
+        if (entry.offset < 0)
+            return null;
+        ByteBuffer buffer = slice(entry.offset + entry.descriptionLength, entry.thumbnailLength);
+        byte[] bytes = new byte[entry.thumbnailLength];
+        buffer.get(bytes);
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    }
+
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        checkOpen();
+        long end = offset + length;
+        if (dataMap == null || end > dataMapSize) {
+            // The file grew since the last mapping: map it again as a whole
+            dataMapSize = dataFile.length();
+            dataMap = dataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataMapSize);
+        }
+        ByteBuffer buffer = dataMap.duplicate();
+        buffer.position((int) offset);
+        buffer.limit((int) end);
+        return buffer.slice();
+    }
+
+    /**
+     * Rewrites the files keeping only the last {@code capacity} entries.
+     */
+    void compact() throws IOException {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries);
+        }
+        int first = Math.max(0, all.size() - capacity);
+        List<Entry> kept = all.subList(first, all.size());
+
+        File newDataFile = new File(directory, DATA_FILE_NAME + ".tmp");
+        File newIndexFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+        long[] newOffsets = new long[kept.size()];
+        try (RandomAccessFile data = new RandomAccessFile(newDataFile, "rw");
+             RandomAccessFile index = new RandomAccessFile(newIndexFile, "rw")) {
+            data.setLength(0);
+            index.setLength(0);
+            for (int i = 0; i < kept.size(); i++) {
+                Entry entry = kept.get(i);
+                int length = entry.descriptionLength + entry.thumbnailLength;
+                byte[] bytes = new byte[length];
+                slice(entry.offset, length).get(bytes);
+                newOffsets[i] = data.length();
+                data.seek(newOffsets[i]);
+                data.write(bytes);
+                writeIndexRecord(index, (long) i * INDEX_RECORD_SIZE, new Entry(entry.id,
+                        newOffsets[i], entry.timestamp, entry.descriptionLength,
+                        entry.thumbnailLength, entry.flags));
+            }
+        }
+
+        close();
+        if (!newDataFile.renameTo(new File(directory, DATA_FILE_NAME))
+                || !newIndexFile.renameTo(new File(directory, INDEX_FILE_NAME)))
+            throw new IOException("unable to replace the history files");
+
+        // Keep the same Entry instances, so that the ones held by the UI remain readable
+        for (int i = 0; i < first; i++)
+            all.get(i).offset = -1;
+        for (int i = 0; i < kept.size(); i++)
+            kept.get(i).offset = newOffsets[i];
+        dataFile = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+        indexFile = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw");
+        synchronized (entries) {
+            entries.subList(0, first).clear();
+        }
+        Log.i(TAG, "Compacted history to " + kept.size() + " entries");
+    }
+}
@@ -0,0 +1,31 @@
+package com.janluke.modernartui.history;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+
+/**
+ * In-memory LRU cache of decoded history thumbnails, bounded by the total size in bytes of the
+ * cached bitmaps. Keys are history entry ids (see ArtworkHistory.Entry).
+ */
+public class ThumbnailCache extends LruCache<Long, Bitmap> {
+
+    /**
+     * @param maxSizeInBytes maximum number of bytes taken by the cached bitmaps
+     */
+    public ThumbnailCache(int maxSizeInBytes) {
+        super(maxSizeInBytes);
+    }
+
+    /**
+     * Creates a cache that takes at most the given fraction of the maximum heap size.
+     */
+    public static ThumbnailCache withHeapFraction(float fraction) {
+        return new ThumbnailCache((int) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    @Override
+    protected int sizeOf(Long key, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+}
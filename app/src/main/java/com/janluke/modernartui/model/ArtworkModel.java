@@ -0,0 +1,198 @@
+package com.janluke.modernartui.model;
+
+import com.janluke.modernartui.colors.ColorSampler;
+import com.janluke.modernartui.colors.ColorSpaces;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Context-free counterpart of Artwork: a TileTree plus the color and visibility state of each
+ * node, stored in flat arrays. It supports the same operations as Artwork (recolor, saturation,
+ * brightness, depth limit) and can be rasterized by TileRasterizer, so it can be used where
+ * Views are not available or too expensive (background rendering, benchmarks, exports).
+ */
+public class ArtworkModel {
+
+    static final int WHITE = 0xFFFFFFFF;
+
+    private final TileTree tree;
+    private final boolean forceWhiteNodes;
+    private final Random random;
+
+    private int[] color;
+    private float[] hsb;            // 3 components per node
+    private boolean[] lockedWhite;
+    private boolean[] showingChildren;
+
+    // Scratch buffers for recolor, indexed by depth
+    private int[] levelCount = new int[0];
+    private int[] levelWhiteNode = new int[0];
+
+    public ArtworkModel(TileTree tree, boolean forceWhiteNodes, Random random) {
+        this.tree = tree;
+        this.forceWhiteNodes = forceWhiteNodes;
+        this.random = random;
+        resize();
+    }
+
+    public ArtworkModel(TileTree tree, boolean forceWhiteNodes) {
+        this(tree, forceWhiteNodes, new Random());
+    }
+
+    /**
+     * Adapts the per-node arrays to the current size of the tree (e.g. after the tree was
+     * regenerated in place), resetting all nodes to white tiles showing their children.
+     */
+    public void resize() {
+        int size = tree.size();
+        if (color == null || color.length < size) {
+            color = new int[size];
+            hsb = new float[3 * size];
+            lockedWhite = new boolean[size];
+            showingChildren = new boolean[size];
+        }
+        Arrays.fill(color, 0, size, WHITE);
+        Arrays.fill(hsb, 0, 3 * size, 0f);
+        for (int i = 0; i < size; i++)
+            hsb[3 * i + 2] = 1f;
+        Arrays.fill(lockedWhite, 0, size, false);
+        for (int i = 0; i < size; i++)
+            showingChildren[i] = !tree.isLeaf(i);
+    }
+
+    public TileTree getTree() {
+        return tree;
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public int getColor(int node) {
+        return color[node];
+    }
+
+    public boolean isLockedWhite(int node) {
+        return lockedWhite[node];
+    }
+
+    public boolean isShowingChildren(int node) {
+        return showingChildren[node];
+    }
+
+    public void setColor(int node, int newColor) {
+        color[node] = newColor;
+        ColorSpaces.colorToHsb(newColor, hsb, 3 * node);
+    }
+
+    /**
+     * Makes the node a white tile that recolor won't change, until the next recolor.
+     */
+    public void lockWhite(int node) {
+        setColor(node, WHITE);
+        lockedWhite[node] = true;
+    }
+
+    public void setShowingChildren(int node, boolean show) {
+        showingChildren[node] = show && !tree.isLeaf(node);
+    }
+
+    /**
+     * Assigns a new color to every node. If white nodes are forced, a random node of each level
+     * is made white and locked, like Artwork.recolor does.
+     */
+    public void recolor(ColorSampler sampler) {
+        int size = tree.size();
+        for (int i = 0; i < size; i++) {
+            lockedWhite[i] = false;
+            setColor(i, sampler.nextColor());
+        }
+        if (!forceWhiteNodes)
+            return;
+
+        // Pick a random node per level with a single pass (reservoir sampling)
+        int numLevels = 0;
+        for (int i = 0; i < size; i++)
+            numLevels = Math.max(numLevels, tree.depth(i) + 1);
+        if (levelCount.length < numLevels) {
+            levelCount = new int[numLevels];
+            levelWhiteNode = new int[numLevels];
+        }
+        Arrays.fill(levelCount, 0, numLevels, 0);
+        for (int i = 0; i < size; i++) {
+            int depth = tree.depth(i);
+            if (random.nextInt(++levelCount[depth]) == 0)
+                levelWhiteNode[depth] = i;
+        }
+        for (int level = 0; level < numLevels; level++)
+            lockWhite(levelWhiteNode[level]);
+    }
+
+    public void setSaturation(float saturation) {
+        setComponent(1, saturation);
+    }
+
+    public void setBrightness(float brightness) {
+        setComponent(2, brightness);
+    }
+
+    /**
+     * Shifts the hue of every node (except the locked white ones) by the given degrees.
+     */
+    public void rotateHue(float degrees) {
+        int size = tree.size();
+        for (int i = 0; i < size; i++) {
+            if (lockedWhite[i])
+                continue;
+            int offset = 3 * i;
+            hsb[offset] = ((hsb[offset] + degrees) % 360f + 360f) % 360f;
+            color[i] = ColorSpaces.hsbToColor(hsb[offset], hsb[offset + 1], hsb[offset + 2]);
+        }
+    }
+
+    private void setComponent(int component, float value) {
+        int size = tree.size();
+        for (int i = 0; i < size; i++) {
+            if (lockedWhite[i])
+                continue;
+            int offset = 3 * i;
+            hsb[offset + component] = value;
+            color[i] = ColorSpaces.hsbToColor(hsb[offset], hsb[offset + 1], hsb[offset + 2]);
+        }
+    }
+
+    /**
+     * Shows the children of the nodes above the given depth and hides the others.
+     */
+    public void setDepthLimit(int depthLimit) {
+        int size = tree.size();
+        for (int i = 0; i < size; i++)
+            showingChildren[i] = !tree.isLeaf(i) && tree.depth(i) < depthLimit;
+    }
+
+    /**
+     * Returns true if the node is a tile currently shown, i.e. it's not showing its children and
+     * all its ancestors are.
+     */
+    public boolean isVisibleLeaf(int node) {
+        if (showingChildren[node])
+            return false;
+        for (int p = tree.parent(node); p != TileTree.NO_PARENT; p = tree.parent(p)) {
+            if (!showingChildren[p])
+                return false;
+        }
+        return true;
+    }
+
+    public int countVisibleLeaves() {
+        int count = 0;
+        int size = tree.size();
+        for (int i = 0; i < size; i++) {
+            if (isVisibleLeaf(i))
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,151 @@
+package com.janluke.modernartui.model;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.colors.ColorSpaces;
+
+import java.util.Arrays;
+
+
+/**
+ * Scores how balanced an artwork looks with a few cheap metrics computed over its leaves, with a
+ * couple of linear passes over the flat tree:
+ *  - area entropy: the entropy of the leaf areas, normalized by its maximum (all tiles equal);
+ *    it's low when one giant tile takes most of the frame;
+ *  - aspect ratio: the fraction of leaves that are not slivers (longest side at most
+ *    maxAspectRatio times the shortest);
+ *  - color balance: the normalized entropy of the area-weighted hue histogram, where
+ *    unsaturated colors (e.g. white tiles) count as a bin of their own.
+ * Each metric is in [0, 1] and the score is their weighted sum, so it's in [0, 1] as well.
+ *
+ * Not thread-safe: use one scorer per thread.
+ */
+public class ArtworkScorer {
+
+    static final float DEFAULT_AREA_WEIGHT = 0.4f;
+    static final float DEFAULT_ASPECT_WEIGHT = 0.3f;
+    static final float DEFAULT_COLOR_WEIGHT = 0.3f;
+    static final float DEFAULT_MAX_ASPECT_RATIO = 4f;
+
+    public static final int UNBOUNDED = 0;
+
+    static final int HUE_BINS = 12;
+    // Colors less saturated than this go to the achromatic bin
+    static final float MIN_CHROMATIC_SATURATION = 0.15f;
+
+    private float areaWeight = DEFAULT_AREA_WEIGHT;
+    private float aspectWeight = DEFAULT_ASPECT_WEIGHT;
+    private float colorWeight = DEFAULT_COLOR_WEIGHT;
+    private float maxAspectRatio = DEFAULT_MAX_ASPECT_RATIO;
+    private int depthLimit = UNBOUNDED;
+
+    private final float[] hueHistogram = new float[HUE_BINS + 1];
+    private final float[] hsb = new float[3];
+
+    /**
+     * Scores the shape of a tree (area entropy and aspect ratio only), weighted so that
+     * layoutScore(tree) + maxColorScore() is an upper bound of score(model).
+     */
+    public float layoutScore(TileTree tree) {
+        int size = tree.size();
+        float totalArea = 0;
+        int numLeaves = 0;
+        int numSlivers = 0;
+        for (int node = 0; node < size; node++) {
+            if (!isTile(tree, node))
+                continue;
+            float width = tree.width(node);
+            float height = tree.height(node);
+            totalArea += width * height;
+            numLeaves++;
+            if (Math.max(width, height) > maxAspectRatio * Math.min(width, height))
+                numSlivers++;
+        }
+        if (numLeaves <= 1 || totalArea <= 0)
+            return 0;
+
+        float entropy = 0;
+        for (int node = 0; node < size; node++) {
+            if (!isTile(tree, node))
+                continue;
+            float p = tree.area(node) / totalArea;
+            if (p > 0)
+                entropy -= p * Math.log(p);
+        }
+        float areaScore = entropy / (float) Math.log(numLeaves);
+        float aspectScore = 1f - numSlivers / (float) numLeaves;
+        return areaWeight * areaScore + aspectWeight * aspectScore;
+    }
+
+    /**
+     * Scores the colors of the leaves of a model.
+     */
+    public float colorScore(ArtworkModel model) {
+        TileTree tree = model.getTree();
+        Arrays.fill(hueHistogram, 0);
+        float totalArea = 0;
+        for (int node = 0; node < tree.size(); node++) {
+            if (!isTile(tree, node))
+                continue;
+            ColorSpaces.colorToHsb(model.getColor(node), hsb, 0);
+            int bin = (hsb[1] < MIN_CHROMATIC_SATURATION)
+                    ? HUE_BINS
+                    : Math.min(HUE_BINS - 1, (int) (hsb[0] / 360f * HUE_BINS));
+            float area = tree.area(node);
+            hueHistogram[bin] += area;
+            totalArea += area;
+        }
+        if (totalArea <= 0)
+            return 0;
+
+        float entropy = 0;
+        for (float binArea : hueHistogram) {
+            float p = binArea / totalArea;
+            if (p > 0)
+                entropy -= p * Math.log(p);
+        }
+        return colorWeight * entropy / (float) Math.log(hueHistogram.length);
+    }
+
+    // Whether the node is shown as a tile with the depth limit
+    private boolean isTile(TileTree tree, int node) {
+        int depth = tree.depth(node);
+        return (depthLimit == UNBOUNDED)
+                ? tree.isLeaf(node)
+                : depth <= depthLimit && (depth == depthLimit || tree.isLeaf(node));
+    }
+
+    public float maxColorScore() {
+        return colorWeight;
+    }
+
+    public float score(ArtworkModel model) {
+        return layoutScore(model.getTree()) + colorScore(model);
+    }
+
+    /**
+     * Sets the relative importance of the metrics. They are normalized to sum to 1.
+     */
+    public ArtworkScorer setWeights(float areaWeight, float aspectWeight, float colorWeight) {
+        float total = areaWeight + aspectWeight + colorWeight;
+        Util.checkArg(areaWeight >= 0 && aspectWeight >= 0
+                && colorWeight >= 0 && total > 0, "illegal weights");
+        this.areaWeight = areaWeight / total;
+        this.aspectWeight = aspectWeight / total;
+        this.colorWeight = colorWeight / total;
+        return this;
+    }
+
+    /**
+     * Makes the scorer look at the tiles shown with the given depth limit (see
+     * ArtworkModel.setDepthLimit), i.e. what the user actually sees, instead of the leaves.
+     */
+    public ArtworkScorer setDepthLimit(int depthLimit) {
+        this.depthLimit = depthLimit;
+        return this;
+    }
+
+    public ArtworkScorer setMaxAspectRatio(float maxAspectRatio) {
+        this.maxAspectRatio = maxAspectRatio;
+        return this;
+    }
+}
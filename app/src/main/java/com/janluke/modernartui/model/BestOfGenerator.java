@@ -0,0 +1,245 @@
+package com.janluke.modernartui.model;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.colors.ColorSampler;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Generates several candidate artworks concurrently and returns the one with the best
+ * ArtworkScorer score.
+ *
+ * Candidates are split recursively into ForkJoin tasks, so idle workers steal them from the busy
+ * ones. The search is cut short in three ways:
+ *  - a candidate whose layout can't beat the best score even with perfect colors is not
+ *    colored at all;
+ *  - as soon as a candidate reaches the good-enough score, the candidates not yet started are
+ *    skipped;
+ *  - when the time budget expires, the best candidate found so far is returned, without waiting
+ *    for the ones still running (at least one candidate is always waited for).
+ *
+ * Each candidate uses its own TileTreeGenerator, random source and fork of the color sampler;
+ * seeds and forks are drawn up front on the calling thread, so the candidates don't depend on
+ * the scheduling, only which ones get evaluated does.
+ */
+public class BestOfGenerator {
+
+    public static final int DEFAULT_NUM_CANDIDATES = 16;
+    public static final float DEFAULT_GOOD_ENOUGH_SCORE = 0.95f;
+
+    private final TileTreeGenerator treeGenerator;
+    private final ForkJoinPool pool;
+
+    private int numCandidates = DEFAULT_NUM_CANDIDATES;
+    private float goodEnoughScore = DEFAULT_GOOD_ENOUGH_SCORE;
+    private long timeBudgetNanos = TileTreeGenerator.UNBOUNDED;
+    private boolean forceWhiteNodes = true;
+    private int scoringDepthLimit = ArtworkScorer.UNBOUNDED;
+    private ColorSampler colorSampler;
+    private Random random = new Random();
+
+    /**
+     * @param treeGenerator prototype of the generator of the candidates, which get a copy each
+     * @param pool          pool where the candidates are evaluated
+     */
+    public BestOfGenerator(TileTreeGenerator treeGenerator, ForkJoinPool pool) {
+        this.treeGenerator = treeGenerator;
+        this.pool = pool;
+    }
+
+    /**
+     * Generates the candidates for a frame of the given size and returns the best one, colored
+     * if a color sampler was set.
+     */
+    public ArtworkModel generate(float width, float height) {
+        long[] seeds = new long[numCandidates];
+        ColorSampler[] samplers = new ColorSampler[numCandidates];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+            if (colorSampler != null)
+                samplers[i] = colorSampler.fork();
+        }
+
+        Search search = new Search(seeds, samplers, width, height);
+        CandidatesTask task = new CandidatesTask(search, 0, seeds.length);
+        pool.execute(task);
+        try {
+            if (timeBudgetNanos == TileTreeGenerator.UNBOUNDED) {
+                task.get();
+            } else {
+                try {
+                    task.get(timeBudgetNanos, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // Skip the candidates not started yet and wait for one result at least
+                    search.stopped = true;
+                    search.awaitFirstResult();
+                }
+            }
+        } catch (InterruptedException e) {
+            search.stopped = true;
+            search.awaitFirstResult();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return search.best();
+    }
+
+    public BestOfGenerator setNumCandidates(int numCandidates) {
+        Util.checkArg(numCandidates > 0, "illegal numCandidates");
+        this.numCandidates = numCandidates;
+        return this;
+    }
+
+    public int getNumCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * @param goodEnoughScore score (in [0, 1]) above which a candidate is accepted right away
+     */
+    public BestOfGenerator setGoodEnoughScore(float goodEnoughScore) {
+        this.goodEnoughScore = goodEnoughScore;
+        return this;
+    }
+
+    /**
+     * @param timeBudgetNanos time after which the best candidate found is returned, or UNBOUNDED
+     */
+    public BestOfGenerator setTimeBudgetNanos(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+        return this;
+    }
+
+    /**
+     * Scores the candidates by the tiles shown with the given depth limit (see
+     * ArtworkScorer.setDepthLimit).
+     */
+    public BestOfGenerator setScoringDepthLimit(int scoringDepthLimit) {
+        this.scoringDepthLimit = scoringDepthLimit;
+        return this;
+    }
+
+    public BestOfGenerator setForceWhiteNodes(boolean forceWhiteNodes) {
+        this.forceWhiteNodes = forceWhiteNodes;
+        return this;
+    }
+
+    /**
+     * Sets the sampler whose forks color the candidates. If null, candidates are scored by
+     * their layout only and returned white.
+     */
+    public BestOfGenerator setColorSampler(ColorSampler colorSampler) {
+        this.colorSampler = colorSampler;
+        return this;
+    }
+
+    public BestOfGenerator setRandom(Random random) {
+        this.random = random;
+        return this;
+    }
+
+
+    /**
+     * State of one call to generate, shared by the tasks.
+     */
+    private class Search {
+        final long[] seeds;
+        final ColorSampler[] samplers;
+        final float width;
+        final float height;
+        final int scoringDepthLimit = BestOfGenerator.this.scoringDepthLimit;
+
+        volatile boolean stopped;
+        private ArtworkModel best;
+        private float bestScore = -1f;
+
+        Search(long[] seeds, ColorSampler[] samplers, float width, float height) {
+            this.seeds = seeds;
+            this.samplers = samplers;
+            this.width = width;
+            this.height = height;
+        }
+
+        void evaluate(int candidate, ArtworkScorer scorer) {
+            Random candidateRandom = new Random(seeds[candidate]);
+            TileTree tree = treeGenerator.copy(candidateRandom).generate(width, height);
+            ArtworkModel model = new ArtworkModel(tree, forceWhiteNodes, candidateRandom);
+
+            float score = scorer.layoutScore(tree);
+            if (samplers[candidate] != null) {
+                // Coloring can add at most maxColorScore: skip hopeless candidates
+                if (score + scorer.maxColorScore() <= bestScore())
+                    return;
+                model.recolor(samplers[candidate]);
+                score += scorer.colorScore(model);
+            }
+            offer(model, score);
+        }
+
+        synchronized float bestScore() {
+            return bestScore;
+        }
+
+        synchronized void offer(ArtworkModel model, float score) {
+            if (score > bestScore) {
+                best = model;
+                bestScore = score;
+            }
+            if (score >= goodEnoughScore)
+                stopped = true;
+            notifyAll();
+        }
+
+        synchronized ArtworkModel best() {
+            return best;
+        }
+
+        synchronized void awaitFirstResult() {
+            // Pruned candidates never offer a result, but pruning requires a result already
+            boolean interrupted = false;
+            while (best == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class CandidatesTask extends RecursiveAction {
+        private final Search search;
+        private final int from;
+        private final int to;
+
+        CandidatesTask(Search search, int from, int to) {
+            this.search = search;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                ForkJoinTask.invokeAll(new CandidatesTask(search, from, middle),
+                        new CandidatesTask(search, middle, to));
+                return;
+            }
+            // The first candidate always runs, so that there's a result
+            if (search.stopped && from != 0)
+                return;
+            search.evaluate(from, new ArtworkScorer().setDepthLimit(search.scoringDepthLimit));
+        }
+    }
+}
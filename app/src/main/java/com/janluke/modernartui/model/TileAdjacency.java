@@ -0,0 +1,190 @@
+package com.janluke.modernartui.model;
+
+import java.util.Arrays;
+
+
+/**
+ * Adjacency graph of a set of non-overlapping tiles (rectangles): two tiles are neighbors when
+ * they face each other across a gap (e.g. a stroke) not wider than maxGap, and the facing sides
+ * overlap.
+ *
+ * The graph is built with a sweep over the sorted tile edges instead of comparing all the pairs:
+ * the left (top) sides of the tiles are grouped by coordinate, each group is matched against the
+ * right (bottom) sides lying within maxGap before it, and the two groups, sorted along the other
+ * axis, are merged in linear time. The cost is O(n log n) plus the size of the graph.
+ *
+ * Neighbors are stored in compressed form (an offsets array and a neighbors array).
+ */
+public class TileAdjacency {
+
+    // Coordinates and tile indexes are packed in the 63 bits of a long sort key
+    static final int COORD_BITS = 21;
+    static final int MAX_COORD = (1 << COORD_BITS) - 1;
+
+    private final int numTiles;
+    private final int[] offsets;
+    private final int[] neighbors;
+
+    private TileAdjacency(int numTiles, int[] offsets, int[] neighbors) {
+        this.numTiles = numTiles;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Builds the graph of the first count tiles. Coordinates must be in [0, 2^21).
+     */
+    public static TileAdjacency build(int[] left, int[] top, int[] right, int[] bottom,
+                                      int count, int maxGap) {
+        IntPairs pairs = new IntPairs();
+        // Side by side (right side of a facing the left side of b) and stacked tiles
+        findFacing(right, left, top, bottom, count, maxGap, pairs);
+        findFacing(bottom, top, left, right, count, maxGap, pairs);
+
+        // Convert the pairs to compressed adjacency lists
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < pairs.size; i++) {
+            offsets[pairs.first[i] + 1]++;
+            offsets[pairs.second[i] + 1]++;
+        }
+        for (int i = 0; i < count; i++)
+            offsets[i + 1] += offsets[i];
+        int[] fill = Arrays.copyOf(offsets, count);
+        int[] neighbors = new int[2 * pairs.size];
+        for (int i = 0; i < pairs.size; i++) {
+            int a = pairs.first[i];
+            int b = pairs.second[i];
+            neighbors[fill[a]++] = b;
+            neighbors[fill[b]++] = a;
+        }
+        return new TileAdjacency(count, offsets, neighbors);
+    }
+
+    /**
+     * Finds the pairs (a, b) such that 0 <= near[b] - far[a] <= maxGap and the spans
+     * [spanStart, spanEnd) of a and b overlap.
+     */
+    private static void findFacing(int[] far, int[] near, int[] spanStart, int[] spanEnd,
+                                   int count, int maxGap, IntPairs pairs) {
+        long[] farKeys = sortedKeys(far, spanStart, count);
+        long[] nearKeys = sortedKeys(near, spanStart, count);
+        int[] farEdges = new int[count];
+        for (int i = 0; i < count; i++)
+            farEdges[i] = edgeOf(farKeys[i]);
+
+        long[] window = new long[count];
+        int groupStart = 0;
+        while (groupStart < count) {
+            // Group of near sides on the same line, already sorted by span start
+            int x = edgeOf(nearKeys[groupStart]);
+            int groupEnd = groupStart;
+            while (groupEnd < count && edgeOf(nearKeys[groupEnd]) == x)
+                groupEnd++;
+
+            // Far sides within the gap; they can lie on a few different lines (rounding), so
+            // sort them by span start
+            int from = lowerBound(farEdges, x - maxGap);
+            int to = lowerBound(farEdges, x + 1);
+            int windowSize = 0;
+            for (int k = from; k < to; k++)
+                window[windowSize++] = rekeyBySpan(farKeys[k]);
+            Arrays.sort(window, 0, windowSize);
+
+            // Merge the two lists of disjoint spans
+            int i = groupStart;
+            int j = 0;
+            while (i < groupEnd && j < windowSize) {
+                int b = indexOf(nearKeys[i]);
+                int a = indexOf(window[j]);
+                if (spanStart[a] < spanEnd[b] && spanStart[b] < spanEnd[a])
+                    pairs.add(a, b);
+                if (spanEnd[a] < spanEnd[b])
+                    j++;
+                else
+                    i++;
+            }
+            groupStart = groupEnd;
+        }
+    }
+
+    // Sort key: edge coordinate, then span start, then tile index
+    private static long[] sortedKeys(int[] edge, int[] spanStart, int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = key(edge[i], spanStart[i], i);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static long key(int primary, int secondary, int index) {
+        return ((long) clamp(primary) << (2 * COORD_BITS))
+                | ((long) clamp(secondary) << COORD_BITS)
+                | index;
+    }
+
+    private static int clamp(int coord) {
+        return Math.max(0, Math.min(MAX_COORD, coord));
+    }
+
+    private static int edgeOf(long key) {
+        return (int) (key >>> (2 * COORD_BITS));
+    }
+
+    private static int indexOf(long key) {
+        return (int) (key & MAX_COORD);
+    }
+
+    // Same key, ordered by span start only
+    private static long rekeyBySpan(long key) {
+        return key & ((1L << (2 * COORD_BITS)) - 1);
+    }
+
+    private static int lowerBound(int[] sorted, int value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    public int numTiles() {
+        return numTiles;
+    }
+
+    public int degree(int tile) {
+        return offsets[tile + 1] - offsets[tile];
+    }
+
+    /**
+     * @param k index of the neighbor, between 0 and degree(tile) - 1
+     */
+    public int neighbor(int tile, int k) {
+        return neighbors[offsets[tile] + k];
+    }
+
+    public int numEdges() {
+        return neighbors.length / 2;
+    }
+
+
+    private static class IntPairs {
+        int[] first = new int[64];
+        int[] second = new int[64];
+        int size;
+
+        void add(int a, int b) {
+            if (size == first.length) {
+                first = Arrays.copyOf(first, 2 * size);
+                second = Arrays.copyOf(second, 2 * size);
+            }
+            first[size] = a;
+            second[size] = b;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.janluke.modernartui.model;
+
+import java.util.Arrays;
+
+
+/**
+ * Lays out an ArtworkModel in pixels and draws it into an ARGB int buffer, without Views.
+ *
+ * The layout replicates the one of the ArtworkNode views: the children of a node share the space
+ * of the node, minus the strokes between them, proportionally to their weights. The strokes are
+ * the background color showing between the tiles.
+ *
+ * Scratch arrays are reused across calls, so drawing the same (or a smaller) artwork again
+ * doesn't allocate. Not thread-safe.
+ */
+public class TileRasterizer {
+
+    public static final int DEFAULT_STROKE_COLOR = 0xFF000000;
+
+    private float[] left = new float[0];
+    private float[] top = new float[0];
+    private float[] right = new float[0];
+    private float[] bottom = new float[0];
+    private boolean[] visible = new boolean[0];
+    private int layoutSize;
+
+    private int strokeColor = DEFAULT_STROKE_COLOR;
+
+    public interface LeafConsumer {
+        void accept(int node, int left, int top, int right, int bottom);
+    }
+
+    public void setStrokeColor(int strokeColor) {
+        this.strokeColor = strokeColor;
+    }
+
+    /**
+     * Computes the rectangle of each visible node for a frame of the given size.
+     */
+    public void layout(ArtworkModel model, float width, float height, float strokeWidth) {
+        TileTree tree = model.getTree();
+        int size = tree.size();
+        if (left.length < size) {
+            left = new float[size];
+            top = new float[size];
+            right = new float[size];
+            bottom = new float[size];
+            visible = new boolean[size];
+        }
+        layoutSize = size;
+        if (size == 0)
+            return;
+
+        Arrays.fill(visible, 0, size, false);
+        left[0] = 0;
+        top[0] = 0;
+        right[0] = width;
+        bottom[0] = height;
+        visible[0] = true;
+
+        // Parents always come before their children
+        for (int node = 0; node < size; node++) {
+            if (!visible[node] || !model.isShowingChildren(node))
+                continue;
+            int first = tree.firstChild(node);
+            int numChildren = tree.numChildren(node);
+            int totalWeight = 0;
+            for (int i = 0; i < numChildren; i++)
+                totalWeight += tree.weight(first + i);
+
+            boolean horizontal = tree.orientation(node) == TileTree.HORIZONTAL;
+            float start = horizontal ? left[node] : top[node];
+            float extent = horizontal ? right[node] - left[node] : bottom[node] - top[node];
+            float available = Math.max(0, extent - (numChildren - 1) * strokeWidth);
+            float position = start;
+            for (int i = 0; i < numChildren; i++) {
+                int child = first + i;
+                float childExtent = available * tree.weight(child) / totalWeight;
+                if (horizontal) {
+                    left[child] = position;
+                    right[child] = position + childExtent;
+                    top[child] = top[node];
+                    bottom[child] = bottom[node];
+                } else {
+                    left[child] = left[node];
+                    right[child] = right[node];
+                    top[child] = position;
+                    bottom[child] = position + childExtent;
+                }
+                visible[child] = true;
+                position += childExtent + strokeWidth;
+            }
+        }
+    }
+
+    /**
+     * Visits the visible leaves computed by the last layout, with their rectangles rounded to
+     * pixels.
+     */
+    public void forEachVisibleLeaf(ArtworkModel model, LeafConsumer consumer) {
+        for (int node = 0; node < layoutSize; node++) {
+            if (visible[node] && !model.isShowingChildren(node))
+                consumer.accept(node, Math.round(left[node]), Math.round(top[node]),
+                        Math.round(right[node]), Math.round(bottom[node]));
+        }
+    }
+
+    /**
+     * Draws the artwork into a width x height buffer.
+     */
+    public void render(ArtworkModel model, int[] pixels, int width, int height, float strokeWidth) {
+        render(model, pixels, width, 0, 0, width, height, strokeWidth);
+    }
+
+    /**
+     * Draws the artwork into a region of a larger buffer.
+     * @param stride number of pixels of a row of the buffer
+     * @param x0     left of the region
+     * @param y0     top of the region
+     */
+    public void render(ArtworkModel model, int[] pixels, int stride, int x0, int y0,
+                       int width, int height, float strokeWidth) {
+        layout(model, width, height, strokeWidth);
+        fillRect(pixels, stride, x0, y0, x0 + width, y0 + height, strokeColor);
+        for (int node = 0; node < layoutSize; node++) {
+            if (visible[node] && !model.isShowingChildren(node))
+                fillRect(pixels, stride,
+                        x0 + Math.round(left[node]), y0 + Math.round(top[node]),
+                        x0 + Math.round(right[node]), y0 + Math.round(bottom[node]),
+                        model.getColor(node));
+        }
+    }
+
+    static void fillRect(int[] pixels, int stride, int l, int t, int r, int b, int color) {
+        for (int y = t; y < b; y++) {
+            int row = y * stride;
+            Arrays.fill(pixels, row + l, row + r, color);
+        }
+    }
+
+    public boolean isVisible(int node) {
+        return visible[node];
+    }
+
+    public float left(int node) {
+        return left[node];
+    }
+
+    public float top(int node) {
+        return top[node];
+    }
+
+    public float right(int node) {
+        return right[node];
+    }
+
+    public float bottom(int node) {
+        return bottom[node];
+    }
+}
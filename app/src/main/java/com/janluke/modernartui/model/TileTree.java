@@ -0,0 +1,281 @@
+package com.janluke.modernartui.model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.IntConsumer;
+
+
+/**
+ * Flat, Context-free representation of the shape of an artwork: the same tree built by
+ * ArtworkNode, without any View.
+ *
+ * Nodes are identified by their index and their attributes are stored in parallel arrays.
+ * Node 0 is the root; the children of a node are stored contiguously, in layout order, starting
+ * at firstChild(node), and always come after their parent.
+ * Geometry (x, y, width, height) is expressed in the units used for generation (dp), or in unit
+ * coordinates after normalize, and can be re-projected to another frame with scale.
+ */
+public class TileTree {
+
+    // Same values as LinearLayout.HORIZONTAL and LinearLayout.VERTICAL
+    public static final int HORIZONTAL = 0;
+    public static final int VERTICAL = 1;
+
+    public static final int NO_PARENT = -1;
+
+    static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] numChildren;
+    private int[] depth;
+    private int[] weight;
+    private byte[] orientation;
+    private float[] x;
+    private float[] y;
+    private float[] width;
+    private float[] height;
+
+    public TileTree(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    public TileTree() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        numChildren = new int[capacity];
+        depth = new int[capacity];
+        weight = new int[capacity];
+        orientation = new byte[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        width = new float[capacity];
+        height = new float[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= parent.length)
+            return;
+        int newCapacity = Math.max(capacity, parent.length * 2);
+        parent = Arrays.copyOf(parent, newCapacity);
+        firstChild = Arrays.copyOf(firstChild, newCapacity);
+        numChildren = Arrays.copyOf(numChildren, newCapacity);
+        depth = Arrays.copyOf(depth, newCapacity);
+        weight = Arrays.copyOf(weight, newCapacity);
+        orientation = Arrays.copyOf(orientation, newCapacity);
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        width = Arrays.copyOf(width, newCapacity);
+        height = Arrays.copyOf(height, newCapacity);
+    }
+
+    /**
+     * Removes all nodes, keeping the allocated arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds the root node. The tree must be empty.
+     */
+    public int addRoot(float width, float height) {
+        if (size != 0)
+            throw new IllegalStateException("the tree already has a root");
+        return add(NO_PARENT, 0, 1, 0, 0, width, height);
+    }
+
+    /**
+     * Adds all the children of a leaf node at once, so that they are stored contiguously.
+     * Children are laid out along the orientation of the node, proportionally to their weights.
+     * @return the index of the first child
+     */
+    public int addChildren(int node, int orientation, int[] weights, int count) {
+        if (numChildren[node] != 0)
+            throw new IllegalStateException("children of node " + node + " were already added");
+        ensureCapacity(size + count);
+        this.orientation[node] = (byte) orientation;
+        firstChild[node] = size;
+        numChildren[node] = count;
+
+        int total = 0;
+        for (int i = 0; i < count; i++)
+            total += weights[i];
+
+        float childX = x[node];
+        float childY = y[node];
+        float childWidth = width[node];
+        float childHeight = height[node];
+        for (int i = 0; i < count; i++) {
+            float fraction = weights[i] / (float) total;
+            if (orientation == HORIZONTAL)
+                childWidth = Math.round(width[node] * fraction);
+            else
+                childHeight = Math.round(height[node] * fraction);
+
+            add(node, depth[node] + 1, weights[i], childX, childY, childWidth, childHeight);
+
+            if (orientation == HORIZONTAL)
+                childX += childWidth;
+            else
+                childY += childHeight;
+        }
+        return firstChild[node];
+    }
+
+    private int add(int parentNode, int nodeDepth, int nodeWeight,
+                    float nodeX, float nodeY, float nodeWidth, float nodeHeight) {
+        ensureCapacity(size + 1);
+        int node = size++;
+        parent[node] = parentNode;
+        firstChild[node] = 0;
+        numChildren[node] = 0;
+        depth[node] = nodeDepth;
+        weight[node] = nodeWeight;
+        orientation[node] = HORIZONTAL;
+        x[node] = nodeX;
+        y[node] = nodeY;
+        width[node] = nodeWidth;
+        height[node] = nodeHeight;
+        return node;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int parent(int node) {
+        return parent[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int numChildren(int node) {
+        return numChildren[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return numChildren[node] == 0;
+    }
+
+    public int depth(int node) {
+        return depth[node];
+    }
+
+    public int weight(int node) {
+        return weight[node];
+    }
+
+    public int orientation(int node) {
+        return orientation[node];
+    }
+
+    public float x(int node) {
+        return x[node];
+    }
+
+    public float y(int node) {
+        return y[node];
+    }
+
+    public float width(int node) {
+        return width[node];
+    }
+
+    public float height(int node) {
+        return height[node];
+    }
+
+    public float area(int node) {
+        return width[node] * height[node];
+    }
+
+    /**
+     * Scales the geometry of all the nodes in a single pass, e.g. to re-project the tree to a
+     * frame of another size or density. The shape (weights and orientations) doesn't change.
+     */
+    public void scale(float scaleX, float scaleY) {
+        for (int i = 0; i < size; i++) {
+            x[i] *= scaleX;
+            y[i] *= scaleY;
+            width[i] *= scaleX;
+            height[i] *= scaleY;
+        }
+    }
+
+    /**
+     * Scales the geometry to unit coordinates, where the root is the unit square: scaling then
+     * by the size of a frame projects the tree to that frame.
+     */
+    public void normalize() {
+        if (size != 0)
+            scale(1f / width[0], 1f / height[0]);
+    }
+
+    /**
+     * Visits the nodes in breadth-first order, using an int queue instead of a queue of objects.
+     */
+    public void traverseBreadthFirst(IntConsumer consumer) {
+        if (size == 0)
+            return;
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int node = queue[head++];
+            consumer.accept(node);
+            int first = firstChild[node];
+            for (int i = 0; i < numChildren[node]; i++)
+                queue[tail++] = first + i;
+        }
+    }
+
+    public LevelsIterator levelsIterator() {
+        return new LevelsIterator(this);
+    }
+
+    /**
+     *  Visit the nodes level by level. Each level contains all nodes at the same depth.
+     */
+    public static class LevelsIterator implements Iterator<int[]> {
+
+        private final TileTree tree;
+        private int[] nextLevel;
+
+        public LevelsIterator(TileTree tree) {
+            this.tree = tree;
+            this.nextLevel = (tree.size == 0) ? new int[0] : new int[] {0};
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLevel.length > 0;
+        }
+
+        @Override
+        public int[] next() {
+            int[] currentLevel = nextLevel;
+
+            int count = 0;
+            for (int node : currentLevel)
+                count += tree.numChildren[node];
+            nextLevel = new int[count];
+            int n = 0;
+            for (int node : currentLevel) {
+                int first = tree.firstChild[node];
+                for (int i = 0; i < tree.numChildren[node]; i++)
+                    nextLevel[n++] = first + i;
+            }
+
+            return currentLevel;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.janluke.modernartui.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Generates the random shape of an artwork as a TileTree.
+ *
+ * Each internal node splits its tile along its longest side (the orientation of the root is
+ * random) into a random number of children with random layout weights; deeper nodes get fewer
+ * children. A node becomes a leaf when it reaches the maximum depth or when its tile is smaller
+ * than the leaf threshold.
+ *
+ * By default the tree is bounded only by those two conditions, so its size can vary a lot.
+ * Setting a node budget (and/or a time budget) switches to a frontier-based generation: the
+ * largest tile of the frontier is always the next one to be split, so the budget is spent where
+ * it's most visible and the tile sizes stay balanced.
+ */
+public class TileTreeGenerator {
+
+    public static final int DEFAULT_MAX_DEPTH = 5;
+    public static final int UNBOUNDED = 0;
+
+    static final int INITIAL_FRONTIER_CAPACITY = 64;
+
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private int minNumChildren = 2;
+    private int maxNumChildren = 5;
+    private int minLayoutWeight = 10;
+    private int maxLayoutWeight = 20;
+    private float leafThreshold = 60f;
+
+    private int maxNodes = UNBOUNDED;
+    private long timeBudgetNanos = UNBOUNDED;
+
+    private Random rand = new Random();
+
+    // Scratch buffers, reused across generations
+    private int[] weights = new int[maxNumChildren];
+    private int[] frontier = new int[INITIAL_FRONTIER_CAPACITY];
+    private float[] frontierArea = new float[INITIAL_FRONTIER_CAPACITY];
+    private int frontierSize;
+
+    /**
+     * Generates a new tree for a tile of the given size.
+     */
+    public TileTree generate(float width, float height) {
+        TileTree tree = new TileTree();
+        generate(tree, width, height);
+        return tree;
+    }
+
+    /**
+     * Generates a new tree into the given one, which is cleared first.
+     */
+    public void generate(TileTree tree, float width, float height) {
+        tree.clear();
+        int root = tree.addRoot(width, height);
+        if (maxNodes == UNBOUNDED && timeBudgetNanos == UNBOUNDED)
+            expandRecursively(tree, root);
+        else
+            expandLargestFirst(tree, root);
+    }
+
+    private void expandRecursively(TileTree tree, int node) {
+        int numChildren = split(tree, node, Integer.MAX_VALUE);
+        int firstChild = tree.firstChild(node);
+        for (int i = 0; i < numChildren; i++)
+            expandRecursively(tree, firstChild + i);
+    }
+
+    private void expandLargestFirst(TileTree tree, int root) {
+        int nodeBudget = (maxNodes == UNBOUNDED) ? Integer.MAX_VALUE : maxNodes;
+        long deadline = (timeBudgetNanos == UNBOUNDED)
+                ? Long.MAX_VALUE
+                : System.nanoTime() + timeBudgetNanos;
+
+        frontierSize = 0;
+        pushFrontier(root, tree.area(root));
+        while (frontierSize > 0 && nodeBudget - tree.size() >= minNumChildren) {
+            if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline)
+                break;
+            int node = popFrontier();
+            int numChildren = split(tree, node, nodeBudget - tree.size());
+            int firstChild = tree.firstChild(node);
+            for (int i = 0; i < numChildren; i++)
+                pushFrontier(firstChild + i, tree.area(firstChild + i));
+        }
+    }
+
+    /**
+     * Splits a node into children, unless it must be a leaf.
+     * @param maxChildren maximum number of children that can be added
+     * @return the number of children added
+     */
+    private int split(TileTree tree, int node, int maxChildren) {
+        // If we reached the last depth level or if the tile is too small, make this node a leaf
+        int depthLevel = tree.depth(node);
+        float width = tree.width(node);
+        float height = tree.height(node);
+        float longestSide = Math.max(width, height);
+        if (depthLevel >= maxDepth || longestSide < leafThreshold || maxChildren < minNumChildren)
+            return 0;
+
+        int orientation = (depthLevel == 0)
+                ? randOrientation()
+                : (width >= height)
+                    ? TileTree.HORIZONTAL
+                    : TileTree.VERTICAL;
+
+        float depthProgress = depthLevel / (float) maxDepth;
+        int maxExtraChildren = Math.round((1F - depthProgress) * (maxNumChildren - minNumChildren));
+        int numChildren = minNumChildren + rand.nextInt(maxExtraChildren + 1);
+        numChildren = Math.min(numChildren, maxChildren);
+
+        // Generate layout weights
+        int deltaWeight = maxLayoutWeight - minLayoutWeight;
+        for (int i = 0; i < numChildren; i++)
+            weights[i] = minLayoutWeight + rand.nextInt(deltaWeight);
+
+        tree.addChildren(node, orientation, weights, numChildren);
+        return numChildren;
+    }
+
+    private int randOrientation() {
+        return (rand.nextBoolean()) ? TileTree.VERTICAL : TileTree.HORIZONTAL;
+    }
+
+    // Binary max-heap of frontier nodes, ordered by area
+
+    private void pushFrontier(int node, float area) {
+        if (frontierSize == frontier.length) {
+            frontier = Arrays.copyOf(frontier, frontierSize * 2);
+            frontierArea = Arrays.copyOf(frontierArea, frontierSize * 2);
+        }
+        int i = frontierSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (frontierArea[parent] >= area)
+                break;
+            frontier[i] = frontier[parent];
+            frontierArea[i] = frontierArea[parent];
+            i = parent;
+        }
+        frontier[i] = node;
+        frontierArea[i] = area;
+    }
+
+    private int popFrontier() {
+        int top = frontier[0];
+        int last = frontier[--frontierSize];
+        float lastArea = frontierArea[frontierSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= frontierSize)
+                break;
+            if (child + 1 < frontierSize && frontierArea[child + 1] > frontierArea[child])
+                child++;
+            if (frontierArea[child] <= lastArea)
+                break;
+            frontier[i] = frontier[child];
+            frontierArea[i] = frontierArea[child];
+            i = child;
+        }
+        frontier[i] = last;
+        frontierArea[i] = lastArea;
+        return top;
+    }
+
+    /**
+     * Returns a generator with the same settings and its own random source, e.g. to generate
+     * trees concurrently (a generator is not thread-safe).
+     */
+    public TileTreeGenerator copy(Random random) {
+        TileTreeGenerator copy = new TileTreeGenerator();
+        copy.maxDepth = maxDepth;
+        copy.minNumChildren = minNumChildren;
+        copy.maxNumChildren = maxNumChildren;
+        copy.minLayoutWeight = minLayoutWeight;
+        copy.maxLayoutWeight = maxLayoutWeight;
+        copy.leafThreshold = leafThreshold;
+        copy.maxNodes = maxNodes;
+        copy.timeBudgetNanos = timeBudgetNanos;
+        copy.rand = random;
+        return copy;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public TileTreeGenerator setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public TileTreeGenerator setLeafThreshold(float leafThreshold) {
+        this.leafThreshold = leafThreshold;
+        return this;
+    }
+
+    /**
+     * @param maxNodes maximum number of nodes of the generated trees, or UNBOUNDED
+     */
+    public TileTreeGenerator setMaxNodes(int maxNodes) {
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    /**
+     * @param timeBudgetNanos time after which the generation stops splitting tiles, or UNBOUNDED
+     */
+    public TileTreeGenerator setTimeBudgetNanos(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+        return this;
+    }
+
+    public TileTreeGenerator setRandom(Random random) {
+        this.rand = random;
+        return this;
+    }
+}
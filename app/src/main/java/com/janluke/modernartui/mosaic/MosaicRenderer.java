@@ -0,0 +1,166 @@
+package com.janluke.modernartui.mosaic;
+
+import android.graphics.Bitmap;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.colors.ConstrainedColorSampler;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileRasterizer;
+import com.janluke.modernartui.model.TileTree;
+import com.janluke.modernartui.model.TileTreeGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Generates a grid of artworks as models and draws them, at thumbnail resolution, into the slots
+ * of a single atlas bitmap, so that showing dozens of artworks takes one bitmap instead of a View
+ * per tile.
+ *
+ * Each slot is generated and rasterized by its own task, with its own copy of the tree generator
+ * and fork of the color sampler (drawn up front, so the artworks don't depend on the
+ * scheduling), into a buffer of the size of a slot; the buffer is then copied into the atlas on
+ * the main thread, so the atlas fills in progressively. The models are kept, so a picked artwork
+ * can be shown in full without generating it again.
+ */
+public class MosaicRenderer {
+
+    public interface OnSlotRenderedListener {
+        void onSlotRendered(int slot);
+    }
+
+    static final int BACKGROUND_COLOR = 0xFFFFFFFF;
+    static final int STROKE_COLOR = 0xFF000000;
+
+    private final int columns;
+    private final int rows;
+    private final int slotWidth;
+    private final int slotHeight;
+    private final int gap;
+    private final Bitmap atlas;
+
+    private final ArtworkModel[] models;
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    /**
+     * @param slotWidth  width in pixels of a thumbnail
+     * @param slotHeight height in pixels of a thumbnail
+     * @param gap        space in pixels between the thumbnails
+     */
+    public MosaicRenderer(int columns, int rows, int slotWidth, int slotHeight, int gap) {
+        Util.checkArg(columns > 0 && rows > 0, "illegal grid size");
+        Util.checkArg(slotWidth > 0 && slotHeight > 0 && gap >= 0, "illegal slot size");
+        this.columns = columns;
+        this.rows = rows;
+        this.slotWidth = slotWidth;
+        this.slotHeight = slotHeight;
+        this.gap = gap;
+        // Thumbnails are opaque: half the memory of ARGB_8888
+        atlas = Bitmap.createBitmap(columns * (slotWidth + gap) - gap,
+                rows * (slotHeight + gap) - gap, Bitmap.Config.RGB_565);
+        atlas.eraseColor(BACKGROUND_COLOR);
+        models = new ArtworkModel[columns * rows];
+    }
+
+    public Bitmap getAtlas() {
+        return atlas;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int numSlots() {
+        return models.length;
+    }
+
+    public int slotLeft(int slot) {
+        return (slot % columns) * (slotWidth + gap);
+    }
+
+    public int slotTop(int slot) {
+        return (slot / columns) * (slotHeight + gap);
+    }
+
+    /**
+     * Returns the slot at the given atlas coordinates, or -1 if they fall between the slots.
+     */
+    public int slotAt(float x, float y) {
+        int column = (int) (x / (slotWidth + gap));
+        int row = (int) (y / (slotHeight + gap));
+        if (x < 0 || y < 0 || column >= columns || row >= rows)
+            return -1;
+        int slot = row * columns + column;
+        if (x >= slotLeft(slot) + slotWidth || y >= slotTop(slot) + slotHeight)
+            return -1;
+        return slot;
+    }
+
+    /**
+     * Returns the model of the artwork of a slot, or null if it was not rendered yet.
+     */
+    public ArtworkModel getModel(int slot) {
+        return models[slot];
+    }
+
+    /**
+     * Generates and draws the artworks of all the slots.
+     * @param treeGenerator settings of the shapes, copied by each task
+     * @param sampler       sampler of the colors, forked for each task
+     * @param widthInDp     size of the artworks, i.e. of the view they are meant for
+     * @param strokeWidth   width in pixels of the strokes in the thumbnails
+     * @param depthLimit    depth limit of the thumbnails
+     * @param executor      where the slots are rendered
+     * @param mainExecutor  where the atlas is updated and the listener is called
+     */
+    public void render(TileTreeGenerator treeGenerator, ConstrainedColorSampler<?> sampler,
+                       boolean forceWhiteNodes, float widthInDp, float heightInDp,
+                       float strokeWidth, int depthLimit, ExecutorService executor,
+                       Executor mainExecutor, OnSlotRenderedListener listener) {
+        Random seeds = new Random();
+        for (int slot = 0; slot < models.length; slot++) {
+            int slotIndex = slot;
+            long seed = seeds.nextLong();
+            ConstrainedColorSampler<?> fork = sampler.fork();
+            tasks.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                TileTree tree = treeGenerator.copy(random).generate(widthInDp, heightInDp);
+                ArtworkModel model = new ArtworkModel(tree, forceWhiteNodes, random);
+                model.recolor(fork);
+                model.setDepthLimit(depthLimit);
+
+                int[] pixels = new int[slotWidth * slotHeight];
+                TileRasterizer rasterizer = new TileRasterizer();
+                rasterizer.setStrokeColor(STROKE_COLOR);
+                rasterizer.render(model, pixels, slotWidth, slotHeight, strokeWidth);
+                mainExecutor.execute(() -> {
+                    if (atlas.isRecycled())
+                        return;
+                    atlas.setPixels(pixels, 0, slotWidth, slotLeft(slotIndex), slotTop(slotIndex),
+                            slotWidth, slotHeight);
+                    models[slotIndex] = model;
+                    listener.onSlotRendered(slotIndex);
+                });
+            }));
+        }
+    }
+
+    /**
+     * Stops the rendering and frees the atlas. The renderer can't be used anymore.
+     */
+    public void release() {
+        for (Future<?> task : tasks)
+            task.cancel(false);
+        tasks.clear();
+        atlas.recycle();
+    }
+}
@@ -0,0 +1,96 @@
+package com.janluke.modernartui.mosaic;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.view.MotionEvent;
+import android.view.View;
+
+
+/**
+ * Draws the atlas of a MosaicRenderer, scaled to the width of the view, and reports which
+ * thumbnail is tapped. The whole grid is a single View.
+ */
+public class MosaicView extends View {
+
+    public interface OnSlotClickListener {
+        void onSlotClick(int slot);
+    }
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF bounds = new RectF();
+    private MosaicRenderer renderer;
+    private OnSlotClickListener listener;
+    private int pressedSlot = -1;
+
+    public MosaicView(Context context) {
+        super(context);
+    }
+
+    public void setRenderer(MosaicRenderer renderer) {
+        this.renderer = renderer;
+        requestLayout();
+        invalidate();
+    }
+
+    public void setOnSlotClickListener(OnSlotClickListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        if (renderer == null) {
+            setMeasuredDimension(width, 0);
+            return;
+        }
+        // Keep the aspect ratio of the atlas
+        int atlasWidth = renderer.getAtlas().getWidth();
+        int atlasHeight = renderer.getAtlas().getHeight();
+        setMeasuredDimension(width, Math.round((float) width * atlasHeight / atlasWidth));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (renderer == null || renderer.getAtlas().isRecycled())
+            return;
+        bounds.set(0, 0, getWidth(), getHeight());
+        canvas.drawBitmap(renderer.getAtlas(), null, bounds, paint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (renderer == null)
+            return false;
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                pressedSlot = slotAt(event.getX(), event.getY());
+                return pressedSlot != -1;
+            case MotionEvent.ACTION_UP:
+                if (pressedSlot != -1 && pressedSlot == slotAt(event.getX(), event.getY()))
+                    performClick();
+                pressedSlot = -1;
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                pressedSlot = -1;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public boolean performClick() {
+        super.performClick();
+        if (listener != null && pressedSlot != -1)
+            listener.onSlotClick(pressedSlot);
+        return true;
+    }
+
+    // Slot under a point of the view
+    private int slotAt(float x, float y) {
+        float scale = (float) renderer.getAtlas().getWidth() / getWidth();
+        return renderer.slotAt(x * scale, y * scale);
+    }
+}
@@ -0,0 +1,89 @@
+package com.janluke.modernartui.perf;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+
+/**
+ * Histogram of latencies with logarithmic buckets: bucket i counts the samples in
+ * [2^(i-1), 2^i) microseconds (bucket 0 counts samples below 1us). Recording a sample doesn't
+ * allocate.
+ */
+public class LatencyHistogram {
+
+    static final int NUM_BUCKETS = 32;
+
+    private final long[] buckets = new long[NUM_BUCKETS];
+    private long count;
+    private long sumMicros;
+    private long minMicros = Long.MAX_VALUE;
+    private long maxMicros;
+
+    public synchronized void record(long micros) {
+        int bucket = (micros <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, NUM_BUCKETS - 1)]++;
+        count++;
+        sumMicros += micros;
+        minMicros = Math.min(minMicros, micros);
+        maxMicros = Math.max(maxMicros, micros);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMeanMicros() {
+        return (count == 0) ? 0 : sumMicros / (double) count;
+    }
+
+    public synchronized long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile (between 0 and 100), i.e. the upper limit of
+     * the bucket containing it.
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (count == 0)
+            return 0;
+        long threshold = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(1, threshold))
+                return Math.min(maxMicros, 1L << i);
+        }
+        return maxMicros;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sumMicros = 0;
+        minMicros = Long.MAX_VALUE;
+        maxMicros = 0;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("meanUs", getMeanMicros());
+        json.put("minUs", (count == 0) ? 0 : minMicros);
+        json.put("maxUs", maxMicros);
+        json.put("p50Us", getPercentileMicros(50));
+        json.put("p90Us", getPercentileMicros(90));
+        json.put("p99Us", getPercentileMicros(99));
+
+        // Non-empty buckets, keyed by their upper bound
+        JSONObject histogram = new JSONObject();
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (buckets[i] > 0)
+                histogram.put("<" + (1L << i), buckets[i]);
+        }
+        json.put("buckets", histogram);
+        return json;
+    }
+}
@@ -0,0 +1,200 @@
+package com.janluke.modernartui.perf;
+
+import android.os.Trace;
+import android.view.Choreographer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+
+/**
+ * Collects performance data about the artwork operations:
+ * - each operation is wrapped in a named trace section (visible in systrace / Perfetto) and its
+ *   latency is recorded in a histogram;
+ * - counters describe the size of the current artwork;
+ * - frame intervals are recorded through a Choreographer callback while frame monitoring is on.
+ *
+ * Usage:
+ * <pre>
+ *     long start = perfMonitor.begin(Operation.RECOLOR);
+ *     artwork.recolor(sampler);
+ *     perfMonitor.end(Operation.RECOLOR, start);
+ * </pre>
+ * Sections must be properly nested and begin/end must be called on the same thread.
+ */
+public class PerfMonitor {
+
+    public enum Operation {
+        GENERATE_ARTWORK("generateArtwork"),
+        RECOLOR("recolor"),
+        SET_SATURATION("setSaturation"),
+        SET_DEPTH_LIMIT("setDepthLimit"),
+        SET_STROKE_WIDTH("setStrokeWidth"),
+        TRANSITION_FRAME("transitionFrame"),
+        WALLPAPER_FRAME("wallpaperFrame"),
+        SAVE("save");
+
+        final String sectionName;
+
+        Operation(String sectionName) {
+            this.sectionName = sectionName;
+        }
+    }
+
+    public enum Counter {
+        NODES("nodes"),
+        VISIBLE_LEAVES("visibleLeaves"),
+        VIEWS("views"),
+        RETAINED_BYTES("retainedBytes");
+
+        final String jsonName;
+
+        Counter(String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    public interface OnUpdateListener {
+        void onUpdate(PerfMonitor monitor);
+    }
+
+    static final long FRAME_LISTENER_UPDATE_INTERVAL_NS = 500_000_000L;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final long[] counters = new long[Counter.values().length];
+    private final LatencyHistogram frameIntervals = new LatencyHistogram();
+    private OnUpdateListener listener;
+
+    private boolean monitoringFrames = false;
+    private long lastFrameTimeNanos;
+    private long lastFrameUpdateNanos;
+    private final Choreographer.FrameCallback frameCallback = this::onFrame;
+
+    public PerfMonitor() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Opens the trace section of the operation.
+     * @return the start time, to be passed to {@link #end(Operation, long)}
+     */
+    public long begin(Operation operation) {
+        Trace.beginSection(operation.sectionName);
+        return System.nanoTime();
+    }
+
+    /**
+     * Closes the trace section of the operation and records its latency.
+     */
+    public void end(Operation operation, long startNanos) {
+        long elapsedMicros = (System.nanoTime() - startNanos) / 1000;
+        Trace.endSection();
+        latencies[operation.ordinal()].record(elapsedMicros);
+        notifyUpdate();
+    }
+
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public synchronized void setCounter(Counter counter, long value) {
+        counters[counter.ordinal()] = value;
+    }
+
+    public synchronized long getCounter(Counter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    public LatencyHistogram getFrameIntervals() {
+        return frameIntervals;
+    }
+
+    public void setOnUpdateListener(OnUpdateListener listener) {
+        this.listener = listener;
+    }
+
+    private void notifyUpdate() {
+        if (listener != null)
+            listener.onUpdate(this);
+    }
+
+    /**
+     * Starts recording frame intervals. Must be called from the UI thread.
+     */
+    public void startFrameMonitoring() {
+        if (monitoringFrames)
+            return;
+        monitoringFrames = true;
+        lastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    public void stopFrameMonitoring() {
+        monitoringFrames = false;
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        if (!monitoringFrames)
+            return;
+        if (lastFrameTimeNanos != 0)
+            frameIntervals.record((frameTimeNanos - lastFrameTimeNanos) / 1000);
+        lastFrameTimeNanos = frameTimeNanos;
+        if (frameTimeNanos - lastFrameUpdateNanos >= FRAME_LISTENER_UPDATE_INTERVAL_NS) {
+            lastFrameUpdateNanos = frameTimeNanos;
+            notifyUpdate();
+        }
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : latencies)
+            histogram.reset();
+        frameIntervals.reset();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONObject countersJson = new JSONObject();
+        for (Counter counter : Counter.values())
+            countersJson.put(counter.jsonName, getCounter(counter));
+        json.put("counters", countersJson);
+
+        JSONObject operationsJson = new JSONObject();
+        for (Operation operation : Operation.values())
+            operationsJson.put(operation.sectionName, getLatencies(operation).toJson());
+        json.put("operations", operationsJson);
+
+        json.put("frameIntervals", frameIntervals.toJson());
+        return json;
+    }
+
+    /**
+     * Returns a short human-readable summary, suitable for a debug overlay.
+     */
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "nodes %d  leaves %d  views %d\n",
+                getCounter(Counter.NODES),
+                getCounter(Counter.VISIBLE_LEAVES),
+                getCounter(Counter.VIEWS)));
+        for (Operation operation : Operation.values())
+            appendLine(builder, operation.sectionName, getLatencies(operation));
+        appendLine(builder, "frame", frameIntervals);
+        return builder.toString();
+    }
+
+    private static void appendLine(StringBuilder builder, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0)
+            return;
+        builder.append(String.format(Locale.US, "%s: n=%d mean=%.1fms p90<%.1fms max=%.1fms\n",
+                name,
+                histogram.getCount(),
+                histogram.getMeanMicros() / 1000,
+                histogram.getPercentileMicros(90) / 1000f,
+                histogram.getMaxMicros() / 1000f));
+    }
+}
@@ -0,0 +1,287 @@
+package com.janluke.modernartui.wallpaper;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.service.wallpaper.WallpaperService;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.janluke.modernartui.Util;
+import com.janluke.modernartui.colors.SpreadPaletteColorSampler;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileRasterizer;
+import com.janluke.modernartui.model.TileTree;
+import com.janluke.modernartui.model.TileTreeGenerator;
+import com.janluke.modernartui.perf.PerfMonitor;
+import com.janluke.modernartui.perf.PerfMonitor.Operation;
+
+import java.util.Random;
+
+
+/**
+ * Live wallpaper that shows an artwork and morphs into a new one every MORPH_INTERVAL_MILLIS,
+ * sweeping the new artwork over the old one.
+ *
+ * The engine runs all day, so once warmed up it doesn't allocate: the shown artwork and the next
+ * one are two flat ArtworkBuffers that are regenerated in place, and the color sampler keeps
+ * walking the same palette. It draws only while visible and only when something changed: a
+ * frame per redraw request of the surface, and MORPH_FPS frames during a morph; between morphs
+ * it just waits for a single delayed callback. Each frame is timed by a PerfMonitor, and a morph
+ * whose frames exceed FRAME_BUDGET_NANOS jumps to its end, so that slow devices pay one frame
+ * per morph.
+ */
+public class ArtworkWallpaperService extends WallpaperService {
+
+    static final String TAG = ArtworkWallpaperService.class.getSimpleName();
+
+    static final long MORPH_INTERVAL_MILLIS = 30_000;
+    static final long MORPH_DURATION_MILLIS = 1200;
+    static final int MORPH_FPS = 30;
+    static final long FRAME_BUDGET_NANOS = 8_000_000L;
+
+    // Artworks are smaller than in the app: they are redrawn as a whole at each frame
+    static final int MAX_NODES = 400;
+    static final long GENERATION_TIME_BUDGET_NANOS = 5_000_000L;
+    static final float STROKE_WIDTH_IN_DP = 8f;
+    static final int STROKE_COLOR = 0xFF000000;
+    static final float SATURATION = 0.5f;
+    static final float MIN_BRIGHTNESS = 0.8f;
+    static final float MAX_BRIGHTNESS = 1f;
+
+    @Override
+    public Engine onCreateEngine() {
+        return new ArtworkEngine();
+    }
+
+    /**
+     * Reusable flat artwork: its tree, colors and pixel layout.
+     */
+    static class ArtworkBuffer {
+        final TileTree tree = new TileTree();
+        final ArtworkModel model;
+        final TileRasterizer rasterizer = new TileRasterizer();
+
+        ArtworkBuffer(Random random) {
+            model = new ArtworkModel(tree, true, random);
+        }
+
+        /**
+         * Generates a new artwork in place, for a surface of the given size.
+         */
+        void generate(TileTreeGenerator generator, SpreadPaletteColorSampler sampler,
+                      float widthInDp, float heightInDp,
+                      int widthInPx, int heightInPx, float strokeWidthInPx) {
+            generator.generate(tree, widthInDp, heightInDp);
+            model.resize();
+            model.recolor(sampler);
+            rasterizer.layout(model, widthInPx, heightInPx, strokeWidthInPx);
+        }
+
+        /**
+         * Re-projects the artwork to a surface of another size, keeping its shape and colors.
+         */
+        void project(float widthInDp, float heightInDp,
+                     int widthInPx, int heightInPx, float strokeWidthInPx) {
+            tree.scale(widthInDp / tree.width(0), heightInDp / tree.height(0));
+            rasterizer.layout(model, widthInPx, heightInPx, strokeWidthInPx);
+        }
+
+        void draw(Canvas canvas, Paint paint) {
+            canvas.drawColor(STROKE_COLOR);
+            int size = model.size();
+            for (int node = 0; node < size; node++) {
+                if (!rasterizer.isVisible(node) || model.isShowingChildren(node))
+                    continue;
+                paint.setColor(model.getColor(node));
+                canvas.drawRect(rasterizer.left(node), rasterizer.top(node),
+                        rasterizer.right(node), rasterizer.bottom(node), paint);
+            }
+        }
+    }
+
+    class ArtworkEngine extends Engine {
+
+        private final Handler handler = new Handler();
+        private final Runnable frameCallback = this::onFrame;
+        private final PerfMonitor perfMonitor = new PerfMonitor();
+        private final Paint paint = new Paint();
+
+        private final Random random = new Random();
+        private final TileTreeGenerator generator = new TileTreeGenerator()
+                .setMaxNodes(MAX_NODES)
+                .setTimeBudgetNanos(GENERATION_TIME_BUDGET_NANOS)
+                .setRandom(random);
+        private final SpreadPaletteColorSampler sampler = new SpreadPaletteColorSampler()
+                .setSaturation(SATURATION)
+                .setBrightnessRange(MIN_BRIGHTNESS, MAX_BRIGHTNESS);
+
+        // The shown artwork and the one it morphs into, swapped at the end of each morph
+        private ArtworkBuffer front = new ArtworkBuffer(random);
+        private ArtworkBuffer back = new ArtworkBuffer(random);
+
+        private boolean visible;
+        private int width;
+        private int height;
+        private float strokeWidth;
+        private long nextMorphMillis;     // uptime of the next morph
+        private long morphStartMillis;    // uptime of the start of the current morph
+        private boolean isMorphing;
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            if (width == this.width && height == this.height)
+                return;
+            boolean isResize = this.width != 0;
+            this.width = width;
+            this.height = height;
+            strokeWidth = Util.dpToPx(getApplicationContext(), STROKE_WIDTH_IN_DP);
+            isMorphing = false;
+            // A rotation keeps the artwork; the next one is generated when the morph starts
+            if (isResize) {
+                float density = getResources().getDisplayMetrics().density;
+                front.project(width / density, height / density, width, height, strokeWidth);
+            } else {
+                generate(front);
+            }
+            scheduleMorph();
+            if (visible) {
+                handler.removeCallbacks(frameCallback);
+                scheduleNextFrame();
+            }
+        }
+
+        @Override
+        public void onSurfaceRedrawNeeded(SurfaceHolder holder) {
+            super.onSurfaceRedrawNeeded(holder);
+            if (width > 0)
+                drawFrame();
+        }
+
+        @Override
+        public void onVisibilityChanged(boolean visible) {
+            this.visible = visible;
+            handler.removeCallbacks(frameCallback);
+            if (!visible) {
+                // Nobody saw the end of the morph: show the new artwork straight away
+                if (isMorphing)
+                    endMorph();
+                return;
+            }
+            if (width == 0)
+                return;
+            drawFrame();
+            if (SystemClock.uptimeMillis() >= nextMorphMillis)
+                startMorph();
+            scheduleNextFrame();
+        }
+
+        @Override
+        public void onSurfaceDestroyed(SurfaceHolder holder) {
+            visible = false;
+            handler.removeCallbacks(frameCallback);
+            super.onSurfaceDestroyed(holder);
+        }
+
+        @Override
+        public void onDestroy() {
+            handler.removeCallbacks(frameCallback);
+            Log.d(TAG, perfMonitor.summary());
+            super.onDestroy();
+        }
+
+        private void onFrame() {
+            if (!visible)
+                return;
+            if (!isMorphing && SystemClock.uptimeMillis() >= nextMorphMillis)
+                startMorph();
+            drawFrame();
+            scheduleNextFrame();
+        }
+
+        private void scheduleNextFrame() {
+            if (isMorphing)
+                handler.postDelayed(frameCallback, 1000 / MORPH_FPS);
+            else
+                handler.postAtTime(frameCallback, nextMorphMillis);
+        }
+
+        private void scheduleMorph() {
+            nextMorphMillis = SystemClock.uptimeMillis() + MORPH_INTERVAL_MILLIS;
+        }
+
+        private void startMorph() {
+            long start = perfMonitor.begin(Operation.GENERATE_ARTWORK);
+            generate(back);
+            perfMonitor.end(Operation.GENERATE_ARTWORK, start);
+            morphStartMillis = SystemClock.uptimeMillis();
+            isMorphing = true;
+        }
+
+        private void endMorph() {
+            ArtworkBuffer old = front;
+            front = back;
+            back = old;
+            isMorphing = false;
+            scheduleMorph();
+        }
+
+        private void generate(ArtworkBuffer buffer) {
+            float density = getResources().getDisplayMetrics().density;
+            buffer.generate(generator, sampler, width / density, height / density,
+                    width, height, strokeWidth);
+        }
+
+        /**
+         * Draws the current state: the front artwork, partly covered by the back one while
+         * morphing.
+         */
+        private void drawFrame() {
+            float progress = 0f;
+            if (isMorphing) {
+                progress = (SystemClock.uptimeMillis() - morphStartMillis)
+                        / (float) MORPH_DURATION_MILLIS;
+                if (progress >= 1f) {
+                    endMorph();
+                    progress = 0f;
+                }
+            }
+
+            SurfaceHolder holder = getSurfaceHolder();
+            Canvas canvas = holder.lockCanvas();
+            if (canvas == null)
+                return;
+            long start = perfMonitor.begin(Operation.WALLPAPER_FRAME);
+            long elapsedNanos;
+            try {
+                if (progress == 0f) {
+                    front.draw(canvas, paint);
+                } else {
+                    // Smoothstep easing of the edge between the artworks
+                    float edge = width * progress * progress * (3f - 2f * progress);
+                    canvas.save();
+                    canvas.clipRect(edge, 0f, width, height);
+                    front.draw(canvas, paint);
+                    canvas.restore();
+                    canvas.save();
+                    canvas.clipRect(0f, 0f, edge, height);
+                    back.draw(canvas, paint);
+                    canvas.restore();
+                }
+            } finally {
+                // Without the wait for the buffer to be posted
+                elapsedNanos = System.nanoTime() - start;
+                perfMonitor.end(Operation.WALLPAPER_FRAME, start);
+                holder.unlockCanvasAndPost(canvas);
+            }
+
+            if (isMorphing && elapsedNanos > FRAME_BUDGET_NANOS) {
+                // Too slow for this device: skip the rest of the morph
+                Log.w(TAG, "Morph frame over budget, skipping to its end");
+                morphStartMillis -= MORPH_DURATION_MILLIS;
+            }
+        }
+    }
+}
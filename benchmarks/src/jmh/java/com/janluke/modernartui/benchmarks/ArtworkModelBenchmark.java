@@ -0,0 +1,57 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.colors.ColorSampler;
+import com.janluke.modernartui.model.ArtworkModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The operations of Artwork (recolor, setSaturation, setDepthLimit), on the flat model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ArtworkModelBenchmark {
+
+    @Param({"3", "5", "7"})
+    int maxDepth;
+
+    ArtworkModel model;
+    ColorSampler sampler;
+    int step;
+
+    @Setup
+    public void setup() {
+        model = Artworks.model(maxDepth, 800, 1280);
+        sampler = Artworks.sampler();
+    }
+
+    @Benchmark
+    public ArtworkModel recolor() {
+        model.recolor(sampler);
+        return model;
+    }
+
+    @Benchmark
+    public ArtworkModel setSaturation() {
+        // Like dragging the slider: the value changes at every call
+        model.setSaturation((++step & 0xFF) / 255f);
+        return model;
+    }
+
+    @Benchmark
+    public ArtworkModel setDepthLimit() {
+        model.setDepthLimit(2 + (++step % maxDepth));
+        return model;
+    }
+}
@@ -0,0 +1,37 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.colors.SpreadPaletteColorSampler;
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileTree;
+import com.janluke.modernartui.model.TileTreeGenerator;
+
+import java.util.Random;
+
+
+/**
+ * Builds the reproducible artworks shared by the benchmarks.
+ */
+class Artworks {
+
+    static final long SEED = 42;
+
+    static TileTree tree(int maxDepth, float width, float height) {
+        return new TileTreeGenerator()
+                .setMaxDepth(maxDepth)
+                .setRandom(new Random(SEED))
+                .generate(width, height);
+    }
+
+    static ArtworkModel model(int maxDepth, float width, float height) {
+        ArtworkModel model = new ArtworkModel(tree(maxDepth, width, height), true,
+                new Random(SEED));
+        model.recolor(sampler());
+        return model;
+    }
+
+    static SpreadPaletteColorSampler sampler() {
+        return new SpreadPaletteColorSampler()
+                .setSaturation(0.5f)
+                .setBrightnessRange(0.8f, 1f);
+    }
+}
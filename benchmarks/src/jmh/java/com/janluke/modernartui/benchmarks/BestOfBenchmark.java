@@ -0,0 +1,49 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.BestOfGenerator;
+import com.janluke.modernartui.model.TileTreeGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Wall-clock time of a best-of-K generation (shape, colors and scores of all the candidates)
+ * on the common ForkJoinPool, to compare with a single generation (K = 1).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BestOfBenchmark {
+
+    @Param({"1", "4", "16"})
+    int numCandidates;
+
+    BestOfGenerator generator;
+
+    @Setup
+    public void setup() {
+        TileTreeGenerator treeGenerator = new TileTreeGenerator().setMaxNodes(1500);
+        generator = new BestOfGenerator(treeGenerator, ForkJoinPool.commonPool())
+                .setNumCandidates(numCandidates)
+                .setScoringDepthLimit(2)
+                .setColorSampler(Artworks.sampler())
+                .setRandom(new Random(42));
+    }
+
+    @Benchmark
+    public ArtworkModel generateBest() {
+        return generator.generate(360, 640);
+    }
+}
@@ -0,0 +1,66 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.colors.ColorSampler;
+import com.janluke.modernartui.colors.HueOffsetColorSampler;
+import com.janluke.modernartui.colors.SpreadPaletteColorSampler;
+import com.janluke.modernartui.colors.UniformColorSampler;
+import com.janluke.modernartui.colors.UniformPaletteColorSampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * ColorSampler.nextColor for each sampler, with the constraints used by the app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorSamplerBenchmark {
+
+    @Param({"hueOffset", "uniform", "uniformPalette", "spreadPalette"})
+    String sampler;
+
+    ColorSampler colorSampler;
+
+    @Setup
+    public void setup() {
+        switch (sampler) {
+            case "hueOffset":
+                colorSampler = HueOffsetColorSampler.withGoldenRatioOffset()
+                        .setSaturation(0.5f)
+                        .setBrightnessRange(0.8f, 1f);
+                break;
+            case "uniform":
+                colorSampler = new UniformColorSampler()
+                        .setSaturation(0.5f)
+                        .setBrightnessRange(0.8f, 1f);
+                break;
+            case "uniformPalette":
+                colorSampler = new UniformPaletteColorSampler()
+                        .setSaturation(0.5f)
+                        .setBrightnessRange(0.8f, 1f);
+                break;
+            case "spreadPalette":
+                colorSampler = new SpreadPaletteColorSampler()
+                        .setSaturation(0.5f)
+                        .setBrightnessRange(0.8f, 1f);
+                break;
+            default:
+                throw new IllegalArgumentException(sampler);
+        }
+    }
+
+    @Benchmark
+    public int nextColor() {
+        return colorSampler.nextColor();
+    }
+}
@@ -0,0 +1,76 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.model.TileTree;
+import com.janluke.modernartui.model.TileTreeGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Generation of the shape of an artwork (the Context-free part of
+ * ArtworkGenerator.generateArtwork), across depths, frame sizes and node budgets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeneratorBenchmark {
+
+    @Param({"3", "5", "7"})
+    int maxDepth;
+
+    @Param({"360x640", "800x1280"})
+    String frameSizeInDp;
+
+    @Param({"0", "500"})
+    int maxNodes;
+
+    TileTreeGenerator generator;
+    TileTree reusedTree = new TileTree();
+    TileTree normalizedTree;
+    float width;
+    float height;
+
+    @Setup
+    public void setup() {
+        generator = new TileTreeGenerator()
+                .setMaxDepth(maxDepth)
+                .setMaxNodes(maxNodes)
+                .setRandom(new Random(42));
+        String[] size = frameSizeInDp.split("x");
+        width = Float.parseFloat(size[0]);
+        height = Float.parseFloat(size[1]);
+        normalizedTree = generator.generate(width, height);
+        normalizedTree.normalize();
+    }
+
+    @Benchmark
+    public TileTree generateNewTree() {
+        return generator.generate(width, height);
+    }
+
+    @Benchmark
+    public TileTree generateIntoReusedTree() {
+        generator.generate(reusedTree, width, height);
+        return reusedTree;
+    }
+
+    /**
+     * What a resize costs when the artwork is kept instead of generated again.
+     */
+    @Benchmark
+    public TileTree reprojectTree() {
+        normalizedTree.scale(width, height);
+        normalizedTree.normalize();
+        return normalizedTree;
+    }
+}
@@ -0,0 +1,53 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.model.ArtworkModel;
+import com.janluke.modernartui.model.TileRasterizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Rasterization of an artwork into an ARGB buffer, as done to export it as an image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RasterBenchmark {
+
+    @Param({"5"})
+    int maxDepth;
+
+    @Param({"540x960", "1080x1920"})
+    String resolution;
+
+    ArtworkModel model;
+    TileRasterizer rasterizer = new TileRasterizer();
+    int width;
+    int height;
+    int[] pixels;
+
+    @Setup
+    public void setup() {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        pixels = new int[width * height];
+        model = Artworks.model(maxDepth, width, height);
+        model.setDepthLimit(maxDepth);
+    }
+
+    @Benchmark
+    public int[] render() {
+        rasterizer.render(model, pixels, width, height, 6f);
+        return pixels;
+    }
+}
@@ -0,0 +1,58 @@
+package com.janluke.modernartui.benchmarks;
+
+import com.janluke.modernartui.model.TileTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Breadth-first traversal (single int queue) vs level-by-level iteration (one array per level),
+ * the two ways the artwork operations visit the tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TraversalBenchmark {
+
+    @Param({"3", "5", "7"})
+    int maxDepth;
+
+    TileTree tree;
+
+    @Setup
+    public void setup() {
+        tree = Artworks.tree(maxDepth, 800, 1280);
+    }
+
+    @Benchmark
+    public void traverseBreadthFirst(Blackhole blackhole) {
+        tree.traverseBreadthFirst(blackhole::consume);
+    }
+
+    @Benchmark
+    public void levelsIterator(Blackhole blackhole) {
+        TileTree.LevelsIterator levels = tree.levelsIterator();
+        while (levels.hasNext()) {
+            for (int node : levels.next())
+                blackhole.consume(node);
+        }
+    }
+
+    @Benchmark
+    public void indexOrder(Blackhole blackhole) {
+        // Baseline: the flat layout can be visited without any queue
+        int size = tree.size();
+        for (int node = 0; node < size; node++)
+            blackhole.consume(node);
+    }
+}